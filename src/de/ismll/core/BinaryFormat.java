@@ -0,0 +1,196 @@
+package de.ismll.core;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Compact binary columnar format for Instances. All numbers are little endian. The file starts with a header of {@link #HEADER_SIZE} bytes:
+ *
+ * <pre>
+ * int magic, int version, int layout, int numValues, int numInstances, int nnz, int reserved, int reserved
+ * </pre>
+ *
+ * followed by the targets as double[numInstances]. For {@link #LAYOUT_DENSE} the values follow row-major as double[numInstances * numValues]. For
+ * {@link #LAYOUT_SPARSE} the rows are stored in CSR form: double[nnz] values, int[numInstances + 1] row pointers and int[nnz] keys.
+ */
+public abstract class BinaryFormat
+{
+	/**
+	 * "HLBI" in ASCII.
+	 */
+	public static final int MAGIC = 0x484C4249;
+
+	public static final int VERSION = 1;
+
+	public static final int LAYOUT_DENSE = 0;
+
+	public static final int LAYOUT_SPARSE = 1;
+
+	static final int HEADER_SIZE = 32;
+
+	/**
+	 * Checks whether the file starts with the magic number of the binary format.
+	 */
+	public static boolean isBinary(File file) throws IOException
+	{
+		if(file.length() < HEADER_SIZE)
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			return Integer.reverseBytes(in.readInt()) == MAGIC;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the instances to the file. Dense layout is used if all instances are dense and of equal length, otherwise CSR.
+	 */
+	public static void write(Instances instances, File file) throws IOException
+	{
+		int numInstances = instances.numInstances();
+		int numValues = instances.numValues();
+		boolean dense = true;
+		long nnz = 0;
+		for(int i = 0; i < numInstances; i++)
+		{
+			Instance instance = instances.instance(i);
+			dense &= instance instanceof DenseInstance && instance.getValues().length == numValues;
+			nnz += instance.getKeys().length;
+		}
+		long size = HEADER_SIZE + 8L * numInstances;
+		if(dense)
+			size += 8L * numInstances * numValues;
+		else
+			size += 8L * nnz + 4L * (numInstances + 1) + 4L * nnz;
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("Data set too large for the binary format: " + size + " bytes.");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(dense ? LAYOUT_DENSE : LAYOUT_SPARSE).putInt(numValues).putInt(numInstances).putInt((int) nnz).putInt(0)
+					.putInt(0);
+
+			DoubleBuffer targets = slice(buffer, HEADER_SIZE).asDoubleBuffer();
+			for(int i = 0; i < numInstances; i++)
+				targets.put(instances.instance(i).target());
+
+			int valueOffset = HEADER_SIZE + 8 * numInstances;
+			DoubleBuffer values = slice(buffer, valueOffset).asDoubleBuffer();
+			if(dense)
+			{
+				for(int i = 0; i < numInstances; i++)
+					values.put(instances.instance(i).getValues());
+			}
+			else
+			{
+				IntBuffer rowPointers = slice(buffer, valueOffset + 8 * (int) nnz).asIntBuffer();
+				IntBuffer keys = slice(buffer, valueOffset + 8 * (int) nnz + 4 * (numInstances + 1)).asIntBuffer();
+				int pointer = 0;
+				for(int i = 0; i < numInstances; i++)
+				{
+					Instance instance = instances.instance(i);
+					rowPointers.put(pointer);
+					values.put(instance.getValues(), 0, instance.getKeys().length);
+					keys.put(instance.getKeys());
+					pointer += instance.getKeys().length;
+				}
+				rowPointers.put(pointer);
+			}
+			buffer.force();
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Memory-maps the file and appends its rows to the given list. No text is parsed, every row is a bulk copy out of the mapped buffer.
+	 *
+	 * @return the number of values of the data set.
+	 */
+	static int read(File file, ArrayList<Instance> instances) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException("File " + file + " is too large to be mapped.");
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if(buffer.getInt() != MAGIC)
+				throw new IOException("File " + file + " is not in the binary instances format.");
+			int version = buffer.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported binary format version " + version + " in " + file + ".");
+			int layout = buffer.getInt();
+			int numValues = buffer.getInt();
+			int numInstances = buffer.getInt();
+			int nnz = buffer.getInt();
+
+			double[] targets = new double[numInstances];
+			slice(buffer, HEADER_SIZE).asDoubleBuffer().get(targets);
+
+			int valueOffset = HEADER_SIZE + 8 * numInstances;
+			DoubleBuffer values = slice(buffer, valueOffset).asDoubleBuffer();
+			instances.ensureCapacity(instances.size() + numInstances);
+			if(layout == LAYOUT_DENSE)
+			{
+				for(int i = 0; i < numInstances; i++)
+				{
+					double[] row = new double[numValues];
+					values.get(row);
+					instances.add(new DenseInstance(targets[i], row, false));
+				}
+			}
+			else if(layout == LAYOUT_SPARSE)
+			{
+				int[] rowPointers = new int[numInstances + 1];
+				slice(buffer, valueOffset + 8 * nnz).asIntBuffer().get(rowPointers);
+				IntBuffer keys = slice(buffer, valueOffset + 8 * nnz + 4 * (numInstances + 1)).asIntBuffer();
+				for(int i = 0; i < numInstances; i++)
+				{
+					int length = rowPointers[i + 1] - rowPointers[i];
+					int[] rowKeys = new int[length];
+					double[] rowValues = new double[length];
+					keys.get(rowKeys);
+					values.get(rowValues);
+					instances.add(new SparseInstance(targets[i], rowKeys, rowValues, false));
+				}
+			}
+			else
+				throw new IOException("Unknown layout " + layout + " in " + file + ".");
+			return numValues;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset)
+	{
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(offset);
+		return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
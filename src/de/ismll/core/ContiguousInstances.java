@@ -0,0 +1,359 @@
+package de.ismll.core;
+
+import java.util.Arrays;
+
+/**
+ * Instances which keep all rows in a few flat arrays instead of one object with its own arrays per row. Dense data is stored row-major in a single double[],
+ * sparse data in CSR form (row pointers, keys and values). Targets are kept in a separate double[]. The instances handed out by {@link #instance(int)} are
+ * lightweight views on this storage, iterating them with {@link Instance#keyAt(int)} and {@link Instance#valueAt(int)} touches contiguous memory only.
+ * <p>
+ * {@link #add(Instance)} copies the row into the storage, the view returned afterwards by {@link #instance(int)} is therefore not the added object. getKeys()
+ * and getValues() of a view return copies. Removing an instance frees its row and the storage is compacted once more than half of its rows are free, so it
+ * stays bounded under a sliding window. A removed view must not be used afterwards.
+ * <p>
+ * In sparse storage the shared part of a {@link FactorizedInstance} is not copied, only its own entries are appended and the view references the shared arrays.
+ */
+public class ContiguousInstances extends Instances
+{
+	private final boolean dense;
+
+	private int numRows;
+
+	private double[] targets = new double[16];
+
+	/**
+	 * Dense: row-major values with numValues entries per row. Sparse: CSR values.
+	 */
+	private double[] flatValues = new double[64];
+
+	/**
+	 * CSR keys, only used for sparse storage.
+	 */
+	private int[] flatKeys;
+
+	/**
+	 * The entries of row r are stored in [rowPointers[r], rowPointers[r + 1]), only used for sparse storage.
+	 */
+	private int[] rowPointers;
+
+	/**
+	 * Creates empty sparse (CSR) storage which accepts dense and sparse instances.
+	 */
+	public ContiguousInstances(int numValues)
+	{
+		this(numValues, false);
+	}
+
+	/**
+	 * @param dense
+	 *            If true, every added instance must have exactly numValues entries.
+	 */
+	public ContiguousInstances(int numValues, boolean dense)
+	{
+		super(numValues);
+		this.dense = dense;
+		if(!dense)
+		{
+			this.flatKeys = new int[64];
+			this.rowPointers = new int[17];
+		}
+	}
+
+	/**
+	 * Copies all instances into contiguous storage. Dense storage is used if all instances are dense with numValues entries.
+	 */
+	public ContiguousInstances(Instances instances)
+	{
+		this(instances.numValues(), isDense(instances));
+		this.addAll(instances);
+	}
+
+	private static boolean isDense(Instances instances)
+	{
+		if(instances.numInstances() == 0)
+			return false;
+		for(Instance instance : instances)
+			if(!(instance instanceof DenseInstance) || instance.size() != instances.numValues())
+				return false;
+		return true;
+	}
+
+	@Override
+	public boolean add(Instance instance)
+	{
+		int maxKey = getMaxKey(instance);
+		if(maxKey > this.numValues())
+			throw new IllegalArgumentException("The instance has " + maxKey + " attributes but only " + this.numValues() + " are allowed.");
+		int size = instance.size();
+		if(this.numRows == this.targets.length)
+			this.targets = Arrays.copyOf(this.targets, 2 * this.numRows);
+		this.targets[this.numRows] = instance.target();
+		if(this.dense)
+		{
+			if(size != this.numValues())
+				throw new IllegalArgumentException("Dense storage requires " + this.numValues() + " values but the instance has " + size + ".");
+			int offset = this.numRows * this.numValues();
+			this.ensureValueCapacity(offset + size);
+			for(int i = 0; i < size; i++)
+				this.flatValues[offset + i] = instance.valueAt(i);
+		}
+		else
+		{
+			if(this.numRows + 1 == this.rowPointers.length)
+				this.rowPointers = Arrays.copyOf(this.rowPointers, 2 * this.rowPointers.length);
+			if(instance instanceof FactorizedInstance)
+			{
+				FactorizedInstance factorized = (FactorizedInstance) instance;
+				size = factorized.getOwnKeys().length;
+				this.appendSparse(instance, size);
+				return this.instances.add(new Row(this.numRows++, factorized.getSharedKeys(), factorized.getSharedValues()));
+			}
+			this.appendSparse(instance, size);
+		}
+		return this.instances.add(new Row(this.numRows++, null, null));
+	}
+
+	/**
+	 * Appends the first size entries of the instance as a new CSR row.
+	 */
+	private void appendSparse(Instance instance, int size)
+	{
+		int offset = this.rowPointers[this.numRows];
+		this.ensureValueCapacity(offset + size);
+		for(int i = 0; i < size; i++)
+		{
+			this.flatKeys[offset + i] = instance.keyAt(i);
+			this.flatValues[offset + i] = instance.valueAt(i);
+		}
+		this.rowPointers[this.numRows + 1] = offset + size;
+	}
+
+	private void ensureValueCapacity(int capacity)
+	{
+		if(capacity > this.flatValues.length)
+		{
+			int newCapacity = Math.max(capacity, 2 * this.flatValues.length);
+			this.flatValues = Arrays.copyOf(this.flatValues, newCapacity);
+			if(!this.dense)
+				this.flatKeys = Arrays.copyOf(this.flatKeys, newCapacity);
+		}
+	}
+
+	@Override
+	public boolean addAll(Instances instances)
+	{
+		boolean changed = false;
+		for(Instance instance : instances)
+			changed |= this.add(instance);
+		return changed;
+	}
+
+	/**
+	 * Removes the i-th instance and frees its row, see {@link #compact()}.
+	 */
+	@Override
+	public Instance remove(int i)
+	{
+		Row removed = (Row) this.instances.remove(i);
+		removed.row = -1;
+		if(this.numRows > 16 && 2 * this.instances.size() < this.numRows)
+			this.compact();
+		return removed;
+	}
+
+	@Override
+	public boolean remove(Instance instance)
+	{
+		int i = this.instances.indexOf(instance);
+		if(i < 0)
+			return false;
+		this.remove(i);
+		return true;
+	}
+
+	/**
+	 * Copies the rows of the remaining instances into new storage of twice their size, in the order of the instances, and moves their views to the new rows.
+	 * The views keep their identity. Removals trigger it once half of the rows are free, so each removal costs O(1) copied rows on average.
+	 */
+	private void compact()
+	{
+		int numLive = this.instances.size();
+		int capacity = Math.max(16, 2 * numLive);
+		double[] newTargets = new double[capacity];
+		if(this.dense)
+		{
+			int numValues = this.numValues();
+			double[] newValues = new double[capacity * numValues];
+			for(int r = 0; r < numLive; r++)
+			{
+				Row view = (Row) this.instances.get(r);
+				newTargets[r] = this.targets[view.row];
+				System.arraycopy(this.flatValues, view.row * numValues, newValues, r * numValues, numValues);
+				view.row = r;
+			}
+			this.flatValues = newValues;
+		}
+		else
+		{
+			int numEntries = 0;
+			for(Instance view : this.instances)
+				numEntries += ((Row) view).ownSize();
+			double[] newValues = new double[Math.max(64, 2 * numEntries)];
+			int[] newKeys = new int[newValues.length];
+			int[] newRowPointers = new int[capacity + 1];
+			for(int r = 0; r < numLive; r++)
+			{
+				Row view = (Row) this.instances.get(r);
+				int from = this.rowPointers[view.row];
+				int size = this.rowPointers[view.row + 1] - from;
+				newTargets[r] = this.targets[view.row];
+				System.arraycopy(this.flatKeys, from, newKeys, newRowPointers[r], size);
+				System.arraycopy(this.flatValues, from, newValues, newRowPointers[r], size);
+				newRowPointers[r + 1] = newRowPointers[r] + size;
+				view.row = r;
+			}
+			this.flatValues = newValues;
+			this.flatKeys = newKeys;
+			this.rowPointers = newRowPointers;
+		}
+		this.targets = newTargets;
+		this.numRows = numLive;
+	}
+
+	@Override
+	public double[] getTargets()
+	{
+		double[] ret = new double[this.numInstances()];
+		for(int i = 0; i < ret.length; i++)
+			ret[i] = this.targets[((Row) this.instances.get(i)).row];
+		return ret;
+	}
+
+	public boolean isDense()
+	{
+		return this.dense;
+	}
+
+	/**
+	 * View on one row of the storage, optionally followed by the shared entries of a factorized instance.
+	 */
+	private class Row extends Instance
+	{
+		/**
+		 * Row in the storage, moved by {@link ContiguousInstances#compact()} and -1 once the instance is removed.
+		 */
+		private int row;
+
+		private final int[] sharedKeys;
+
+		private final double[] sharedValues;
+
+		Row(int row, int[] sharedKeys, double[] sharedValues)
+		{
+			this.row = row;
+			this.sharedKeys = sharedKeys;
+			this.sharedValues = sharedValues;
+		}
+
+		private int offset()
+		{
+			return dense ? this.row * numValues() : rowPointers[this.row];
+		}
+
+		/**
+		 * Number of entries stored in the flat arrays.
+		 */
+		private int ownSize()
+		{
+			return dense ? numValues() : rowPointers[this.row + 1] - rowPointers[this.row];
+		}
+
+		@Override
+		public int size()
+		{
+			return this.sharedKeys == null ? this.ownSize() : this.ownSize() + this.sharedKeys.length;
+		}
+
+		@Override
+		public int keyAt(int i)
+		{
+			if(dense)
+				return i;
+			int ownSize = this.ownSize();
+			return i < ownSize ? flatKeys[rowPointers[this.row] + i] : this.sharedKeys[i - ownSize];
+		}
+
+		@Override
+		public double valueAt(int i)
+		{
+			if(this.sharedKeys != null)
+			{
+				int ownSize = this.ownSize();
+				if(i >= ownSize)
+					return this.sharedValues[i - ownSize];
+			}
+			return flatValues[this.offset() + i];
+		}
+
+		@Override
+		public double getValue(int index)
+		{
+			if(dense)
+				return index < numValues() ? flatValues[this.row * numValues() + index] : 0;
+			if(this.sharedKeys != null && this.sharedKeys.length > 0 && index >= this.sharedKeys[0])
+			{
+				int i = Arrays.binarySearch(this.sharedKeys, index);
+				return i >= 0 ? this.sharedValues[i] : 0;
+			}
+			int i = Arrays.binarySearch(flatKeys, rowPointers[this.row], rowPointers[this.row + 1], index);
+			return i >= 0 ? flatValues[i] : 0;
+		}
+
+		@Override
+		public double[] getValues()
+		{
+			double[] ret = new double[this.size()];
+			for(int i = 0; i < ret.length; i++)
+				ret[i] = this.valueAt(i);
+			return ret;
+		}
+
+		@Override
+		public int[] getKeys()
+		{
+			int[] ret = new int[this.size()];
+			for(int i = 0; i < ret.length; i++)
+				ret[i] = this.keyAt(i);
+			return ret;
+		}
+
+		/**
+		 * Only entries stored in the flat arrays can be changed.
+		 */
+		@Override
+		public void setValue(double value, int index)
+		{
+			if(dense)
+			{
+				flatValues[this.row * numValues() + index] = value;
+				return;
+			}
+			int i = Arrays.binarySearch(flatKeys, rowPointers[this.row], rowPointers[this.row + 1], index);
+			if(i < 0)
+				throw new IllegalArgumentException("Operation not supported.");
+			flatValues[i] = value;
+		}
+
+		@Override
+		public double target()
+		{
+			return targets[this.row];
+		}
+
+		@Override
+		public void setTarget(double target)
+		{
+			targets[this.row] = target;
+		}
+	}
+}
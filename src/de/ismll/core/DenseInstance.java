@@ -1,20 +1,31 @@
 package de.ismll.core;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DenseInstance extends Instance
 {
-	private static HashMap<Integer, int[]> cachedIndices = new HashMap<Integer, int[]>();
+	private static ConcurrentHashMap<Integer, int[]> cachedIndices = new ConcurrentHashMap<Integer, int[]>();
 
 	public DenseInstance(double target, double[] values)
 	{
 		super(target, values);
-		if(!cachedIndices.containsKey(values.length))
+		cacheIndices(values.length);
+	}
+
+	DenseInstance(double target, double[] values, boolean copy)
+	{
+		super(target, values, copy);
+		cacheIndices(values.length);
+	}
+
+	private static void cacheIndices(int length)
+	{
+		if(!cachedIndices.containsKey(length))
 		{
-			int[] indices = new int[values.length];
+			int[] indices = new int[length];
 			for(int i = 0; i < indices.length; i++)
 				indices[i] = i;
-			cachedIndices.put(indices.length, indices);
+			cachedIndices.putIfAbsent(indices.length, indices);
 		}
 	}
 
@@ -36,6 +47,12 @@ public class DenseInstance extends Instance
 		return cachedIndices.get(this.values.length);
 	}
 
+	@Override
+	public int keyAt(int i)
+	{
+		return i;
+	}
+
 	@Override
 	public void setValue(double value, int index)
 	{
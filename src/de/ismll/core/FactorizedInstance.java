@@ -0,0 +1,119 @@
+package de.ismll.core;
+
+import java.util.Arrays;
+
+/**
+ * Sparse instance whose entries are split into an own part and a shared part. The shared part (e.g. the meta-features of a meta-data set) is the same array
+ * for all instances of a data set and therefore stored only once. All keys of the own part are smaller than the keys of the shared part, the accessors behave
+ * exactly like for a {@link SparseInstance} with the concatenated entries.
+ */
+public class FactorizedInstance extends Instance
+{
+	private final int[] keys;
+
+	private final int[] sharedKeys;
+
+	private final double[] sharedValues;
+
+	FactorizedInstance(double target, int[] keys, double[] values, int[] sharedKeys, double[] sharedValues)
+	{
+		super(target, values, false);
+		this.keys = keys;
+		this.sharedKeys = sharedKeys;
+		this.sharedValues = sharedValues;
+	}
+
+	@Override
+	public int size()
+	{
+		return this.keys.length + this.sharedKeys.length;
+	}
+
+	@Override
+	public int keyAt(int i)
+	{
+		return i < this.keys.length ? this.keys[i] : this.sharedKeys[i - this.keys.length];
+	}
+
+	@Override
+	public double valueAt(int i)
+	{
+		return i < this.keys.length ? this.values[i] : this.sharedValues[i - this.keys.length];
+	}
+
+	@Override
+	public double getValue(int index)
+	{
+		if(this.sharedKeys.length > 0 && index >= this.sharedKeys[0])
+		{
+			int i = Arrays.binarySearch(this.sharedKeys, index);
+			return i >= 0 ? this.sharedValues[i] : 0;
+		}
+		int i = Arrays.binarySearch(this.keys, index);
+		return i >= 0 ? this.values[i] : 0;
+	}
+
+	/**
+	 * Returns the concatenated values, a new array is created on every call.
+	 */
+	@Override
+	public double[] getValues()
+	{
+		double[] ret = Arrays.copyOf(this.values, this.size());
+		System.arraycopy(this.sharedValues, 0, ret, this.keys.length, this.sharedValues.length);
+		return ret;
+	}
+
+	/**
+	 * Returns the concatenated keys, a new array is created on every call.
+	 */
+	@Override
+	public int[] getKeys()
+	{
+		int[] ret = Arrays.copyOf(this.keys, this.size());
+		System.arraycopy(this.sharedKeys, 0, ret, this.keys.length, this.sharedKeys.length);
+		return ret;
+	}
+
+	/**
+	 * Only values of the own part can be changed.
+	 */
+	@Override
+	public void setValue(double value, int index)
+	{
+		int i = Arrays.binarySearch(this.keys, index);
+		if(i < 0)
+			throw new IllegalArgumentException("Operation not supported.");
+		this.values[i] = value;
+	}
+
+	public int[] getOwnKeys()
+	{
+		return this.keys;
+	}
+
+	public double[] getOwnValues()
+	{
+		return this.values;
+	}
+
+	public int[] getSharedKeys()
+	{
+		return this.sharedKeys;
+	}
+
+	public double[] getSharedValues()
+	{
+		return this.sharedValues;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.target());
+		for(int i = 0; i < this.size(); i++)
+			sb.append(" ").append(this.keyAt(i)).append(":").append(this.valueAt(i));
+		return sb.toString();
+	}
+}
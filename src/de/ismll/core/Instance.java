@@ -14,6 +14,24 @@ public abstract class Instance
 		this.values = Arrays.copyOf(values, values.length);
 	}
 
+	/**
+	 * Creates an instance that takes ownership of the given values array instead of copying it. Only used by loaders which allocate a fresh array per row
+	 * anyway.
+	 */
+	Instance(double target, double[] values, boolean copy)
+	{
+		this.target = target;
+		this.values = copy ? Arrays.copyOf(values, values.length) : values;
+	}
+
+	/**
+	 * Constructor for instances which are views on an external storage and override all accessors.
+	 */
+	protected Instance()
+	{
+		this.values = null;
+	}
+
 	public abstract double getValue(int index);
 
 	public abstract double[] getValues();
@@ -22,6 +40,31 @@ public abstract class Instance
 
 	public abstract int[] getKeys();
 
+	/**
+	 * Number of stored entries, i.e. the length of getKeys() and getValues(). Together with {@link #keyAt(int)} and {@link #valueAt(int)} this allows to
+	 * iterate over the entries without requiring an array per instance.
+	 */
+	public int size()
+	{
+		return this.values.length;
+	}
+
+	/**
+	 * The key of the i-th stored entry.
+	 */
+	public int keyAt(int i)
+	{
+		return this.getKeys()[i];
+	}
+
+	/**
+	 * The value of the i-th stored entry.
+	 */
+	public double valueAt(int i)
+	{
+		return this.values[i];
+	}
+
 	public void setTarget(double target)
 	{
 		this.target = target;
@@ -1,6 +1,16 @@
 package de.ismll.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.ismll.hylap.util.IntRange;
 
@@ -123,16 +133,16 @@ public abstract class InstanceUtils
 	{
 		double result = 0;
 		int index1 = 0, index2 = 0;
-		int[] keys1 = i1.getKeys(), keys2 = i2.getKeys();
-		double[] values1 = i1.getValues(), values2 = i2.getValues();
-		while(index1 < keys1.length && index2 < keys2.length)
+		int size1 = i1.size(), size2 = i2.size();
+		while(index1 < size1 && index2 < size2)
 		{
-			if(keys1[index1] < keys2[index2])
+			int key1 = i1.keyAt(index1), key2 = i2.keyAt(index2);
+			if(key1 < key2)
 				index1++;
-			else if(keys1[index1] > keys2[index2])
+			else if(key1 > key2)
 				index2++;
 			else
-				result += values1[index1++] * values2[index2++];
+				result += i1.valueAt(index1++) * i2.valueAt(index2++);
 		}
 		return result;
 	}
@@ -149,37 +159,123 @@ public abstract class InstanceUtils
 	{
 		double result = 0;
 		int index1 = 0, index2 = 0;
-		int[] keys1 = i1.getKeys(), keys2 = i2.getKeys();
-		double[] values1 = i1.getValues(), values2 = i2.getValues();
-		while((index1 < keys1.length || index2 < keys2.length) && (index1 < keys1.length && keys1[index1] < m || index2 < keys2.length && keys2[index2] < m))
-		{
-			if(index1 < keys1.length && keys1[index1] < m && (index2 >= keys2.length || keys2[index2] > keys1[index1]))
-				result += Math.pow(values1[index1++], 2);
-			else if(index2 < keys2.length && keys2[index2] < m && (index1 >= keys1.length || keys1[index1] > keys2[index2]))
-				result += Math.pow(values2[index2++], 2);
-			else if(index1 < keys1.length && index2 < keys2.length && keys1[index1] < m && keys2[index2] < m )
-				result += Math.pow(values1[index1++] - values2[index2++], 2);
+		// Entries with keys >= m are ignored, so only the prefixes with keys below m are merged.
+		int size1 = 0, size2 = 0;
+		while(size1 < i1.size() && i1.keyAt(size1) < m)
+			size1++;
+		while(size2 < i2.size() && i2.keyAt(size2) < m)
+			size2++;
+		while(index1 < size1 || index2 < size2)
+		{
+			if(index1 < size1 && (index2 >= size2 || i2.keyAt(index2) > i1.keyAt(index1)))
+			{
+				double value = i1.valueAt(index1++);
+				result += value * value;
+			}
+			else if(index2 < size2 && (index1 >= size1 || i1.keyAt(index1) > i2.keyAt(index2)))
+			{
+				double value = i2.valueAt(index2++);
+				result += value * value;
+			}
+			else
+			{
+				double diff = i1.valueAt(index1++) - i2.valueAt(index2++);
+				result += diff * diff;
+			}
 		}
 		return Math.sqrt(result);
 	}
 
 	public static Instance copyInstance(Instance instance)
+	{
+		return copyInstance(instance, instance.target());
+	}
+
+	/**
+	 * Copies the instance but replaces its target. The shared part of a {@link FactorizedInstance} is not copied.
+	 */
+	public static Instance copyInstance(Instance instance, double target)
 	{
 		if(instance instanceof DenseInstance)
 		{
-			return createDenseInstance(instance.target(), instance.values);
+			return createDenseInstance(target, instance.values);
 		}
 		else if(instance instanceof SparseInstance)
 		{
-			return createSparseInstance(instance.target(), instance.values, instance.getKeys());
+			return createSparseInstance(target, instance.values, instance.getKeys());
+		}
+		else if(instance instanceof FactorizedInstance)
+		{
+			FactorizedInstance factorized = (FactorizedInstance) instance;
+			return new FactorizedInstance(target, factorized.getOwnKeys(), Arrays.copyOf(factorized.getOwnValues(), factorized.getOwnValues().length),
+					factorized.getSharedKeys(), factorized.getSharedValues());
 		}
 		else
 		{
-			System.err.println("Instance type not supported!");
-			return null;
+			return createSparseInstance(target, instance.getValues(), instance.getKeys());
 		}
 	}
 
+	/**
+	 * Stores the entries with keys >= firstSharedKey only once if they are identical for all instances, e.g. the meta-features of a meta-data set. Only the
+	 * entries below firstSharedKey are kept per instance.
+	 * 
+	 * @return factorized copies of the instances or the given instances if the entries from firstSharedKey on are not the same for all of them.
+	 */
+	public static Instances factorize(Instances instances, int firstSharedKey)
+	{
+		if(instances.numInstances() == 0)
+			return instances;
+		Instance first = instances.instance(0);
+		int split = getSplitIndex(first, firstSharedKey);
+		int sharedSize = first.size() - split;
+		if(sharedSize == 0)
+			return instances;
+		int[] sharedKeys = new int[sharedSize];
+		double[] sharedValues = new double[sharedSize];
+		for(int i = 0; i < sharedSize; i++)
+		{
+			sharedKeys[i] = first.keyAt(split + i);
+			sharedValues[i] = first.valueAt(split + i);
+		}
+		for(Instance instance : instances)
+		{
+			int instanceSplit = getSplitIndex(instance, firstSharedKey);
+			if(instance.size() - instanceSplit != sharedSize)
+				return instances;
+			for(int i = 0; i < sharedSize; i++)
+			{
+				if(instance.keyAt(instanceSplit + i) != sharedKeys[i] || instance.valueAt(instanceSplit + i) != sharedValues[i])
+					return instances;
+			}
+		}
+		Instances ret = new Instances(instances.numValues());
+		for(Instance instance : instances)
+		{
+			int instanceSplit = getSplitIndex(instance, firstSharedKey);
+			int[] keys = new int[instanceSplit];
+			double[] values = new double[instanceSplit];
+			for(int i = 0; i < instanceSplit; i++)
+			{
+				keys[i] = instance.keyAt(i);
+				values[i] = instance.valueAt(i);
+			}
+			ret.add(new FactorizedInstance(instance.target(), keys, values, sharedKeys, sharedValues));
+		}
+		return ret;
+	}
+
+	/**
+	 * Index of the first entry with a key >= key.
+	 */
+	private static int getSplitIndex(Instance instance, int key)
+	{
+		int split = 0;
+		while(split < instance.size() && instance.keyAt(split) < key)
+			split++;
+		return split;
+	}
+
 	public static Instances copyInstances(Instances instances)
 	{
 		Instances ret = new Instances(instances.numValues());
@@ -281,6 +377,51 @@ public abstract class InstanceUtils
 		}
 	}
 
+	/**
+	 * Loads all files concurrently on at most numThreads threads. The i-th entry of the result always belongs to files[i], independent of the order in which
+	 * the threads finish.
+	 */
+	public static Instances[] loadInstances(File[] files, int numThreads) throws IOException
+	{
+		Instances[] ret = new Instances[files.length];
+		if(files.length == 0)
+			return ret;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, files.length)));
+		try
+		{
+			List<Future<Instances>> futures = new ArrayList<Future<Instances>>(files.length);
+			for(final File file : files)
+			{
+				futures.add(executor.submit(new Callable<Instances>()
+				{
+					@Override
+					public Instances call() throws IOException
+					{
+						return new Instances(file);
+					}
+				}));
+			}
+			for(int i = 0; i < ret.length; i++)
+				ret[i] = futures.get(i).get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading data sets.", e);
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return ret;
+	}
+
 	public static Instances combineInstances(Instances[] instances)
 	{
 		Instances ret = new Instances(instances[0].numValues());
@@ -1,12 +1,9 @@
 package de.ismll.core;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -48,7 +45,22 @@ public class Instances implements Iterable<Instance>
 		this(file," ");
 	}
 
+	/**
+	 * Reads the instances from a libsvm, dense or {@link BinaryFormat binary} file. Binary files are recognized by their header and memory-mapped, the
+	 * delimiter is ignored for them. Text files with a single character delimiter are read by the byte-level parser of {@link TextFormat}, other delimiters are
+	 * treated as a regular expression.
+	 */
 	public Instances(File file, String delimiter) throws IOException
+	{
+		if(BinaryFormat.isBinary(file))
+			this.numValues = BinaryFormat.read(file, this.instances);
+		else if(TextFormat.isSupportedDelimiter(delimiter))
+			this.numValues = TextFormat.read(file, delimiter, this.instances);
+		else
+			this.readWithRegex(file, delimiter);
+	}
+
+	private void readWithRegex(File file, String delimiter) throws IOException
 	{
 		BufferedReader br = new BufferedReader(new FileReader(file));
 		String line;
@@ -433,7 +445,7 @@ public class Instances implements Iterable<Instance>
 	 */
 	public boolean add(Instance instance)
 	{
-		int maxKey = instance.getKeys()[instance.getKeys().length - 1];
+		int maxKey = getMaxKey(instance);
 		if(maxKey > this.numValues)
 			throw new IllegalArgumentException("The instance has " + maxKey + " attributes but only " + this.numValues + " are allowed.");
 		return this.instances.add(instance);
@@ -449,17 +461,30 @@ public class Instances implements Iterable<Instance>
 	{
 		int maxKey = 0;
 		for(int i = 0; i < instances.numInstances(); i++)
-			maxKey = Math.max(maxKey, instances.instance(i).getKeys()[instances.instance(i).getKeys().length - 1]);
+			maxKey = Math.max(maxKey, getMaxKey(instances.instance(i)));
 		if(maxKey > this.numValues)
 			throw new IllegalArgumentException("The instance has " + maxKey + " attributes but only " + this.numValues + " are allowed.");
 		return this.instances.addAll(instances.instances);
 	}
 
+	static int getMaxKey(Instance instance)
+	{
+		return instance.size() == 0 ? 0 : instance.keyAt(instance.size() - 1);
+	}
+
 	public boolean remove(Instance instance)
 	{
 		return this.instances.remove(instance);
 	}
 
+	/**
+	 * Removes the i-th instance, the following instances move up by one.
+	 */
+	public Instance remove(int i)
+	{
+		return this.instances.remove(i);
+	}
+
 	public Instance instance(int i)
 	{
 		return this.instances.get(i);
@@ -477,38 +502,20 @@ public class Instances implements Iterable<Instance>
 
 	public void saveToLibsvm(File file) throws IOException
 	{
-		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"));
-		for(Instance instance : this.instances)
-		{
-			bw.write("" + instance.target());
-			int[] keys = instance.getKeys();
-			double[] values = instance.getValues();
-			for(int i = 0; i < keys.length; i++)
-			{
-				if(values[i] != 0)
-				bw.write(" " + keys[i] + ":" + values[i]);
-			}
-			bw.newLine();
-		}
-		bw.close();
+		TextFormat.writeSparse(this, file, 0);
+	}
+
+	/**
+	 * Saves the instances in the {@link BinaryFormat binary format} which can be loaded with {@link #Instances(File)} without parsing.
+	 */
+	public void saveToBinary(File file) throws IOException
+	{
+		BinaryFormat.write(this, file);
 	}
 
 	public void saveToSVMLight(File file) throws IOException
 	{
-		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"));
-		for(Instance instance : this.instances)
-		{
-			bw.write("" + instance.target());
-			int[] keys = instance.getKeys();
-			double[] values = instance.getValues();
-			for(int i = 0; i < keys.length; i++)
-			{
-				if(values[i] != 0)
-				bw.write(" " + (keys[i] + 1) + ":" + values[i]);
-			}
-			bw.newLine();
-		}
-		bw.close();
+		TextFormat.writeSparse(this, file, 1);
 	}
 
 	public void saveToDense(String filename) throws IOException
@@ -528,19 +535,7 @@ public class Instances implements Iterable<Instance>
 
 	public void saveToDense(File file, String delimiter) throws IOException
 	{
-		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"));
-		for(Instance instance : this.instances)
-		{
-			bw.write("" + instance.target());
-			int[] keys = instance.getKeys();
-			double[] values = instance.getValues();
-			for(int i = 0; i < keys.length; i++)
-			{
-				bw.write(delimiter + values[i]);
-			}
-			bw.newLine();
-		}
-		bw.close();
+		TextFormat.writeDense(this, file, delimiter);
 	}
 
 	public boolean iskFoldSplitted()
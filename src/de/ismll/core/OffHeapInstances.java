@@ -0,0 +1,386 @@
+package de.ismll.core;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Instances whose targets, keys and values live in direct (off-heap) memory in CSR form, so very large meta-data sets do not have to be traced by the garbage
+ * collector. Only one small view object per row stays on the heap. The views read straight from the direct buffers through {@link Instance#keyAt(int)} and
+ * {@link Instance#valueAt(int)}, so kernels and Gaussian processes work on this storage without copying it back.
+ * <p>
+ * The memory is released by {@link #close()}, any access afterwards fails. Like {@link ContiguousInstances}, {@link #add(Instance)} copies the row and
+ * getKeys() and getValues() of a view return heap copies, and removed rows are freed and compacted the same way. A single buffer is limited to 2GB, i.e. about
+ * 268 million stored values.
+ */
+public class OffHeapInstances extends Instances implements Closeable
+{
+	private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+
+	private static final Object UNSAFE;
+
+	private static final Method INVOKE_CLEANER;
+
+	static
+	{
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		}
+		catch(Exception e)
+		{
+			// Before Java 9 there is no invokeCleaner, the memory is freed once the buffer is garbage collected.
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private int numRows;
+
+	private int numEntries;
+
+	private DoubleBuffer targets;
+
+	private IntBuffer rowPointers;
+
+	private IntBuffer keys;
+
+	private DoubleBuffer values;
+
+	private ByteBuffer targetMemory, rowPointerMemory, keyMemory, valueMemory;
+
+	private boolean closed = false;
+
+	public OffHeapInstances(int numValues)
+	{
+		this(numValues, 1024, 16 * 1024);
+	}
+
+	/**
+	 * @param rowCapacity
+	 *            Initial number of rows, the storage grows by doubling.
+	 * @param entryCapacity
+	 *            Initial number of stored key/value pairs, the storage grows by doubling.
+	 */
+	public OffHeapInstances(int numValues, int rowCapacity, int entryCapacity)
+	{
+		super(numValues);
+		this.targetMemory = allocate(8L * rowCapacity);
+		this.rowPointerMemory = allocate(4L * (rowCapacity + 1));
+		this.keyMemory = allocate(4L * entryCapacity);
+		this.valueMemory = allocate(8L * entryCapacity);
+		this.createViews();
+	}
+
+	/**
+	 * Copies all instances into off-heap storage.
+	 */
+	public OffHeapInstances(Instances instances)
+	{
+		this(instances.numValues(), Math.max(1, instances.numInstances()), Math.max(1, countEntries(instances)));
+		this.addAll(instances);
+	}
+
+	private static int countEntries(Instances instances)
+	{
+		long entries = 0;
+		for(Instance instance : instances)
+			entries += instance.size();
+		if(entries > Integer.MAX_VALUE / 8)
+			throw new IllegalArgumentException("Too many values for off-heap storage: " + entries);
+		return (int) entries;
+	}
+
+	private static ByteBuffer allocate(long bytes)
+	{
+		if(bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Off-heap buffer of " + bytes + " bytes exceeds the maximum buffer size.");
+		return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+	}
+
+	private void createViews()
+	{
+		this.targets = this.targetMemory.asDoubleBuffer();
+		this.rowPointers = this.rowPointerMemory.asIntBuffer();
+		this.keys = this.keyMemory.asIntBuffer();
+		this.values = this.valueMemory.asDoubleBuffer();
+	}
+
+	private static ByteBuffer grow(ByteBuffer old, long minBytes)
+	{
+		ByteBuffer grown = allocate(Math.max(minBytes, 2L * old.capacity()));
+		ByteBuffer source = old.duplicate();
+		source.clear();
+		grown.put(source);
+		grown.clear();
+		release(old);
+		return grown;
+	}
+
+	@Override
+	public boolean add(Instance instance)
+	{
+		if(this.closed)
+			throw new IllegalStateException("Instances have been closed.");
+		int maxKey = getMaxKey(instance);
+		if(maxKey > this.numValues())
+			throw new IllegalArgumentException("The instance has " + maxKey + " attributes but only " + this.numValues() + " are allowed.");
+		int size = instance.size();
+		boolean grown = false;
+		if(this.numRows == this.targets.capacity())
+		{
+			this.targetMemory = grow(this.targetMemory, 8L * (this.numRows + 1));
+			this.rowPointerMemory = grow(this.rowPointerMemory, 4L * (this.numRows + 2));
+			grown = true;
+		}
+		if(this.numEntries + size > this.values.capacity())
+		{
+			this.keyMemory = grow(this.keyMemory, 4L * (this.numEntries + size));
+			this.valueMemory = grow(this.valueMemory, 8L * (this.numEntries + size));
+			grown = true;
+		}
+		if(grown)
+			this.createViews();
+
+		this.targets.put(this.numRows, instance.target());
+		this.rowPointers.put(this.numRows, this.numEntries);
+		for(int i = 0; i < size; i++)
+		{
+			this.keys.put(this.numEntries + i, instance.keyAt(i));
+			this.values.put(this.numEntries + i, instance.valueAt(i));
+		}
+		this.numEntries += size;
+		this.rowPointers.put(this.numRows + 1, this.numEntries);
+		return this.instances.add(new Row(this.numRows++));
+	}
+
+	@Override
+	public boolean addAll(Instances instances)
+	{
+		boolean changed = false;
+		for(Instance instance : instances)
+			changed |= this.add(instance);
+		return changed;
+	}
+
+	/**
+	 * Removes the i-th instance and frees its row, see {@link #compact()}. The removed view must not be used afterwards.
+	 */
+	@Override
+	public Instance remove(int i)
+	{
+		Row removed = (Row) this.instances.remove(i);
+		removed.row = -1;
+		if(this.numRows > 16 && 2 * this.instances.size() < this.numRows)
+			this.compact();
+		return removed;
+	}
+
+	@Override
+	public boolean remove(Instance instance)
+	{
+		int i = this.instances.indexOf(instance);
+		if(i < 0)
+			return false;
+		this.remove(i);
+		return true;
+	}
+
+	/**
+	 * Copies the rows of the remaining instances into new buffers of twice their size, in the order of the instances, and releases the old buffers. The
+	 * views keep their identity and move to the new rows.
+	 */
+	private void compact()
+	{
+		int numLive = this.instances.size();
+		int numLiveEntries = 0;
+		for(Instance view : this.instances)
+			numLiveEntries += view.size();
+		int rowCapacity = Math.max(16, 2 * numLive), entryCapacity = Math.max(16, 2 * numLiveEntries);
+		ByteBuffer newTargetMemory = allocate(8L * rowCapacity), newRowPointerMemory = allocate(4L * (rowCapacity + 1));
+		ByteBuffer newKeyMemory = allocate(4L * entryCapacity), newValueMemory = allocate(8L * entryCapacity);
+		DoubleBuffer newTargets = newTargetMemory.asDoubleBuffer(), newValues = newValueMemory.asDoubleBuffer();
+		IntBuffer newRowPointers = newRowPointerMemory.asIntBuffer(), newKeys = newKeyMemory.asIntBuffer();
+		int offset = 0;
+		for(int r = 0; r < numLive; r++)
+		{
+			Row view = (Row) this.instances.get(r);
+			int from = this.rowPointers.get(view.row), to = this.rowPointers.get(view.row + 1);
+			newTargets.put(r, this.targets.get(view.row));
+			newRowPointers.put(r, offset);
+			for(int i = from; i < to; i++, offset++)
+			{
+				newKeys.put(offset, this.keys.get(i));
+				newValues.put(offset, this.values.get(i));
+			}
+			view.row = r;
+		}
+		newRowPointers.put(numLive, offset);
+		release(this.targetMemory);
+		release(this.rowPointerMemory);
+		release(this.keyMemory);
+		release(this.valueMemory);
+		this.targetMemory = newTargetMemory;
+		this.rowPointerMemory = newRowPointerMemory;
+		this.keyMemory = newKeyMemory;
+		this.valueMemory = newValueMemory;
+		this.createViews();
+		this.numRows = numLive;
+		this.numEntries = offset;
+	}
+
+	/**
+	 * Number of bytes of direct memory held by this object.
+	 */
+	public long offHeapBytes()
+	{
+		return (long) this.targetMemory.capacity() + this.rowPointerMemory.capacity() + this.keyMemory.capacity() + this.valueMemory.capacity();
+	}
+
+	public boolean isClosed()
+	{
+		return this.closed;
+	}
+
+	/**
+	 * Releases the direct memory. The instances must not be used afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		if(this.closed)
+			return;
+		this.closed = true;
+		release(this.targetMemory);
+		release(this.rowPointerMemory);
+		release(this.keyMemory);
+		release(this.valueMemory);
+		this.targetMemory = this.rowPointerMemory = this.keyMemory = this.valueMemory = EMPTY;
+		this.createViews();
+		this.instances.clear();
+	}
+
+	/**
+	 * Frees the memory of a direct buffer immediately if the JVM allows it.
+	 */
+	private static void release(ByteBuffer buffer)
+	{
+		if(INVOKE_CLEANER == null || buffer == EMPTY)
+			return;
+		try
+		{
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		}
+		catch(Exception e)
+		{
+			Logger.warning("Could not release off-heap memory: " + e);
+		}
+	}
+
+	/**
+	 * View on one row of the storage.
+	 */
+	private class Row extends Instance
+	{
+		/**
+		 * Row in the storage, moved by {@link OffHeapInstances#compact()} and -1 once the instance is removed.
+		 */
+		private int row;
+
+		Row(int row)
+		{
+			this.row = row;
+		}
+
+		@Override
+		public int size()
+		{
+			return rowPointers.get(this.row + 1) - rowPointers.get(this.row);
+		}
+
+		@Override
+		public int keyAt(int i)
+		{
+			return keys.get(rowPointers.get(this.row) + i);
+		}
+
+		@Override
+		public double valueAt(int i)
+		{
+			return OffHeapInstances.this.values.get(rowPointers.get(this.row) + i);
+		}
+
+		private int find(int index)
+		{
+			int low = rowPointers.get(this.row), high = rowPointers.get(this.row + 1) - 1;
+			while(low <= high)
+			{
+				int mid = (low + high) >>> 1;
+				int key = keys.get(mid);
+				if(key < index)
+					low = mid + 1;
+				else if(key > index)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -1;
+		}
+
+		@Override
+		public double getValue(int index)
+		{
+			int i = this.find(index);
+			return i >= 0 ? OffHeapInstances.this.values.get(i) : 0;
+		}
+
+		@Override
+		public double[] getValues()
+		{
+			double[] ret = new double[this.size()];
+			for(int i = 0; i < ret.length; i++)
+				ret[i] = this.valueAt(i);
+			return ret;
+		}
+
+		@Override
+		public int[] getKeys()
+		{
+			int[] ret = new int[this.size()];
+			for(int i = 0; i < ret.length; i++)
+				ret[i] = this.keyAt(i);
+			return ret;
+		}
+
+		@Override
+		public void setValue(double value, int index)
+		{
+			int i = this.find(index);
+			if(i < 0)
+				throw new IllegalArgumentException("Operation not supported.");
+			OffHeapInstances.this.values.put(i, value);
+		}
+
+		@Override
+		public double target()
+		{
+			return targets.get(this.row);
+		}
+
+		@Override
+		public void setTarget(double target)
+		{
+			targets.put(this.row, target);
+		}
+	}
+}
@@ -12,6 +12,12 @@ public class SparseInstance extends Instance
 		this.keys = keys;
 	}
 
+	SparseInstance(double target, int[] keys, double[] values, boolean copy)
+	{
+		super(target, values, copy);
+		this.keys = keys;
+	}
+
 	@Override
 	public double getValue(int index)
 	{
@@ -38,6 +44,12 @@ public class SparseInstance extends Instance
 		return this.keys;
 	}
 
+	@Override
+	public int keyAt(int i)
+	{
+		return this.keys[i];
+	}
+
 	@Override
 	public void setValue(double value, int index)
 	{
@@ -0,0 +1,457 @@
+package de.ismll.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Byte-level reader and writer for the libsvm and dense text formats. The reader scans raw bytes, parses integers and doubles in place and collects each row in
+ * reusable primitive buffers, so the only allocations per row are the exactly sized key and value arrays handed to the instance. The writer formats numbers
+ * into a reusable buffer instead of building a String for every value.
+ */
+public abstract class TextFormat
+{
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * No number in a data set is longer than this, a token is always contiguous in the buffer once this many bytes are available.
+	 */
+	private static final int MAX_TOKEN_LENGTH = 128;
+
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18,
+			1e19, 1e20, 1e21, 1e22 };
+
+	private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Returns true if the delimiter can be handled by the byte-level reader, i.e. it is a single character. Other delimiters are regular expressions for
+	 * String.split.
+	 */
+	static boolean isSupportedDelimiter(String delimiter)
+	{
+		return delimiter.length() == 1 && delimiter.charAt(0) < 128 && delimiter.charAt(0) != ':';
+	}
+
+	/**
+	 * Reads a libsvm or dense text file. The format is chosen by the first line just like in {@link Instances#Instances(File, String)}.
+	 *
+	 * @return the number of values of the data set.
+	 */
+	static int read(File file, String delimiter, ArrayList<Instance> instances) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			return read(in, (byte) delimiter.charAt(0), instances);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	static int read(InputStream in, byte delimiter, ArrayList<Instance> instances) throws IOException
+	{
+		Reader reader = new Reader(in, delimiter);
+		int[] keys = new int[64];
+		double[] values = new double[64];
+		int maxKey = 0;
+		boolean firstLine = true, sparse = false;
+		while(reader.skipEmptyLines())
+		{
+			if(firstLine)
+			{
+				firstLine = false;
+				sparse = reader.lineContainsColon();
+			}
+			double target = reader.nextDouble();
+			int length = 0;
+			while(reader.nextToken())
+			{
+				if(length == values.length)
+				{
+					keys = Arrays.copyOf(keys, 2 * length);
+					values = Arrays.copyOf(values, 2 * length);
+				}
+				if(sparse)
+				{
+					keys[length] = reader.nextInt();
+					reader.expectColon();
+					maxKey = Math.max(maxKey, keys[length] + 1);
+				}
+				values[length++] = reader.nextDouble();
+			}
+			if(sparse)
+				instances.add(new SparseInstance(target, Arrays.copyOf(keys, length), Arrays.copyOf(values, length), false));
+			else
+			{
+				maxKey = Math.max(maxKey, length);
+				instances.add(new DenseInstance(target, Arrays.copyOf(values, length), false));
+			}
+		}
+		return maxKey;
+	}
+
+	/**
+	 * Writes the instances in libsvm format. Zero values are skipped.
+	 *
+	 * @param keyOffset
+	 *            Added to every key, 1 for SVMLight.
+	 */
+	static void writeSparse(Instances instances, File file, int keyOffset) throws IOException
+	{
+		Writer writer = new Writer(new FileOutputStream(file));
+		try
+		{
+			for(Instance instance : instances)
+			{
+				writer.write(instance.target());
+				int[] keys = instance.getKeys();
+				double[] values = instance.getValues();
+				for(int i = 0; i < keys.length; i++)
+				{
+					if(values[i] != 0)
+					{
+						writer.write(' ');
+						writer.write(keys[i] + keyOffset);
+						writer.write(':');
+						writer.write(values[i]);
+					}
+				}
+				writer.newLine();
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	static void writeDense(Instances instances, File file, String delimiter) throws IOException
+	{
+		Writer writer = new Writer(new FileOutputStream(file));
+		byte[] delimiterBytes = delimiter.getBytes(StandardCharsets.UTF_8);
+		try
+		{
+			for(Instance instance : instances)
+			{
+				writer.write(instance.target());
+				int[] keys = instance.getKeys();
+				double[] values = instance.getValues();
+				for(int i = 0; i < keys.length; i++)
+				{
+					writer.write(delimiterBytes);
+					writer.write(values[i]);
+				}
+				writer.newLine();
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Cursor over a refillable byte buffer.
+	 */
+	private static class Reader
+	{
+		private final InputStream in;
+
+		private final byte delimiter;
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		private int position, limit;
+
+		private boolean eof;
+
+		Reader(InputStream in, byte delimiter)
+		{
+			this.in = in;
+			this.delimiter = delimiter;
+		}
+
+		/**
+		 * Makes sure at least n bytes are buffered unless the end of the stream is reached.
+		 */
+		private boolean ensure(int n) throws IOException
+		{
+			if(this.limit - this.position >= n)
+				return true;
+			if(this.eof)
+				return this.limit > this.position;
+			System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+			this.limit -= this.position;
+			this.position = 0;
+			while(this.limit < this.buffer.length)
+			{
+				int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+				if(read < 0)
+				{
+					this.eof = true;
+					break;
+				}
+				this.limit += read;
+			}
+			return this.limit > this.position;
+		}
+
+		private boolean isSeparator(byte b)
+		{
+			return b == this.delimiter || b == ' ' || b == '\t';
+		}
+
+		/**
+		 * Skips blank lines and positions the cursor at the first byte of the next row.
+		 *
+		 * @return false at the end of the stream.
+		 */
+		boolean skipEmptyLines() throws IOException
+		{
+			while(this.ensure(1))
+			{
+				byte b = this.buffer[this.position];
+				if(b != '\n' && b != '\r' && !this.isSeparator(b))
+					return true;
+				this.position++;
+			}
+			return false;
+		}
+
+		/**
+		 * Skips separators of the current line.
+		 *
+		 * @return true if another token follows on the current line, false if the line ended (the line break is consumed).
+		 */
+		boolean nextToken() throws IOException
+		{
+			while(this.ensure(1))
+			{
+				byte b = this.buffer[this.position];
+				if(b == '\n')
+				{
+					this.position++;
+					return false;
+				}
+				if(b != '\r' && !this.isSeparator(b))
+					return true;
+				this.position++;
+			}
+			return false;
+		}
+
+		boolean lineContainsColon() throws IOException
+		{
+			this.ensure(BUFFER_SIZE);
+			for(int i = this.position; i < this.limit && this.buffer[i] != '\n'; i++)
+				if(this.buffer[i] == ':')
+					return true;
+			return false;
+		}
+
+		void expectColon() throws IOException
+		{
+			if(!this.ensure(1) || this.buffer[this.position] != ':')
+				throw new IOException("Expected ':' after key.");
+			this.position++;
+		}
+
+		int nextInt() throws IOException
+		{
+			this.ensure(MAX_TOKEN_LENGTH);
+			int start = this.position;
+			boolean negative = false;
+			if(this.position < this.limit && (this.buffer[this.position] == '-' || this.buffer[this.position] == '+'))
+				negative = this.buffer[this.position++] == '-';
+			int value = 0;
+			while(this.position < this.limit)
+			{
+				int digit = this.buffer[this.position] - '0';
+				if(digit < 0 || digit > 9)
+					break;
+				value = 10 * value + digit;
+				this.position++;
+			}
+			if(this.position == start)
+				throw new IOException("Expected an integer.");
+			return negative ? -value : value;
+		}
+
+		/**
+		 * Parses a double in place. If the significant digits form an integer of at most 2^53 and the decimal exponent is within [-22, 22], both are exact
+		 * doubles and the number is converted with a single correctly rounded multiplication or division. Everything else, including numbers with more than 18
+		 * significant digits, which could overflow the long mantissa, is handed to Double.parseDouble.
+		 */
+		double nextDouble() throws IOException
+		{
+			this.ensure(MAX_TOKEN_LENGTH);
+			int start = this.position;
+			int end = start;
+			while(end < this.limit && !this.isSeparator(this.buffer[end]) && this.buffer[end] != '\n' && this.buffer[end] != '\r' && this.buffer[end] != ':')
+				end++;
+			if(end == start)
+				throw new IOException("Expected a number.");
+			if(end == this.limit && !this.eof)
+				throw new IOException("Number longer than " + MAX_TOKEN_LENGTH + " characters.");
+			this.position = end;
+
+			int i = start;
+			boolean negative = false;
+			if(this.buffer[i] == '-' || this.buffer[i] == '+')
+				negative = this.buffer[i++] == '-';
+			long mantissa = 0;
+			int significantDigits = 0, exponent = 0;
+			boolean anyDigit = false, afterPoint = false;
+			for(; i < end; i++)
+			{
+				byte b = this.buffer[i];
+				if(b >= '0' && b <= '9')
+				{
+					anyDigit = true;
+					if(mantissa != 0 || b != '0')
+					{
+						if(++significantDigits > 18)
+							return this.fallback(start, end);
+						mantissa = 10 * mantissa + (b - '0');
+					}
+					if(afterPoint)
+						exponent--;
+				}
+				else if(b == '.' && !afterPoint)
+					afterPoint = true;
+				else
+					break;
+			}
+			if(!anyDigit)
+				return this.fallback(start, end);
+			if(i < end)
+			{
+				if(this.buffer[i] != 'e' && this.buffer[i] != 'E' || ++i == end)
+					return this.fallback(start, end);
+				boolean negativeExponent = false;
+				if(this.buffer[i] == '-' || this.buffer[i] == '+')
+					negativeExponent = this.buffer[i++] == '-';
+				if(i == end || end - i > 4)
+					return this.fallback(start, end);
+				int e = 0;
+				for(; i < end; i++)
+				{
+					int digit = this.buffer[i] - '0';
+					if(digit < 0 || digit > 9)
+						return this.fallback(start, end);
+					e = 10 * e + digit;
+				}
+				exponent += negativeExponent ? -e : e;
+			}
+			if(mantissa > MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22)
+				return this.fallback(start, end);
+			double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+
+		private double fallback(int start, int end) throws IOException
+		{
+			try
+			{
+				return Double.parseDouble(new String(this.buffer, start, end - start, StandardCharsets.US_ASCII));
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IOException(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Buffered writer which formats numbers without creating intermediate Strings.
+	 */
+	private static class Writer
+	{
+		private final OutputStream out;
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		private int position;
+
+		private final StringBuilder number = new StringBuilder(32);
+
+		Writer(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		private void ensure(int n) throws IOException
+		{
+			if(this.buffer.length - this.position < n)
+			{
+				this.out.write(this.buffer, 0, this.position);
+				this.position = 0;
+			}
+		}
+
+		void write(char c) throws IOException
+		{
+			this.ensure(1);
+			this.buffer[this.position++] = (byte) c;
+		}
+
+		void write(byte[] bytes) throws IOException
+		{
+			this.ensure(bytes.length);
+			System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+			this.position += bytes.length;
+		}
+
+		void write(int value) throws IOException
+		{
+			this.number.setLength(0);
+			this.number.append(value);
+			this.flushNumber();
+		}
+
+		/**
+		 * Same text as Double.toString(value).
+		 */
+		void write(double value) throws IOException
+		{
+			this.number.setLength(0);
+			this.number.append(value);
+			this.flushNumber();
+		}
+
+		private void flushNumber() throws IOException
+		{
+			int length = this.number.length();
+			this.ensure(length);
+			for(int i = 0; i < length; i++)
+				this.buffer[this.position++] = (byte) this.number.charAt(i);
+		}
+
+		void newLine() throws IOException
+		{
+			this.write(LINE_SEPARATOR);
+		}
+
+		void close() throws IOException
+		{
+			try
+			{
+				this.out.write(this.buffer, 0, this.position);
+			}
+			finally
+			{
+				this.out.close();
+			}
+		}
+	}
+}
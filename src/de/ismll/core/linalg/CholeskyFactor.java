@@ -0,0 +1,244 @@
+package de.ismll.core.linalg;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Lower triangular Cholesky factor L of a symmetric positive definite matrix K = L * L^T, stored packed row by row (row i starts at i * (i + 1) / 2). Since
+ * the rows of a packed lower triangle do not depend on the dimension, the factor grows by appending rows. The storage grows by doubling, so appending n
+ * points one after another costs amortized O(n^2) per point and no copies of the factor.
+ */
+public class CholeskyFactor
+{
+	/**
+	 * Number of right-hand sides solved together by {@link #solveLower(double[][], int)}.
+	 */
+	private static final int SOLVE_BLOCK_SIZE = 16;
+
+	private double[] data;
+
+	private int size;
+
+	/**
+	 * Number of rows the storage can hold without growing.
+	 */
+	private int capacity;
+
+	public CholeskyFactor(int capacity)
+	{
+		this.capacity = Math.max(1, capacity);
+		this.data = new double[packedLength(this.capacity)];
+	}
+
+	private static int packedLength(int rows)
+	{
+		return PackedMatrices.length(rows);
+	}
+
+	/**
+	 * Replaces the factor by the Cholesky factor of the packed symmetric n x n matrix K, see
+	 * {@link PackedMatrices#cholesky(double[], int, int, ForkJoinPool)}. K is copied, the storage of the factor is reused.
+	 *
+	 * @param pool
+	 *            Parallelizes the decomposition, may be null.
+	 * @return false if K is not positive definite, the factor is empty in that case.
+	 */
+	public boolean decompose(double[] K, int n, int blockSize, ForkJoinPool pool)
+	{
+		this.size = 0;
+		this.ensureCapacity(n);
+		System.arraycopy(K, 0, this.data, 0, packedLength(n));
+		if(!PackedMatrices.cholesky(this.data, n, blockSize, pool))
+			return false;
+		this.size = n;
+		return true;
+	}
+
+	private void ensureCapacity(int rows)
+	{
+		if(rows > this.capacity)
+		{
+			this.capacity = Math.max(rows, 2 * this.capacity);
+			this.data = Arrays.copyOf(this.data, packedLength(this.capacity));
+		}
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * L_ij for j <= i.
+	 */
+	public double get(int i, int j)
+	{
+		return this.data[i * (i + 1) / 2 + j];
+	}
+
+	/**
+	 * The packed storage itself, only the first size() rows are valid.
+	 */
+	public double[] getData()
+	{
+		return this.data;
+	}
+
+	/**
+	 * Dense copy of L including the zero upper triangle.
+	 */
+	public double[][] toArray()
+	{
+		double[][] ret = new double[this.size][this.size];
+		for(int i = 0, offset = 0; i < this.size; offset += ++i)
+			System.arraycopy(this.data, offset, ret[i], 0, i + 1);
+		return ret;
+	}
+
+	/**
+	 * Solves L * x = b in place (forward substitution) on the first size() entries of b.
+	 */
+	public void solveLower(double[] b)
+	{
+		PackedMatrices.solveLower(this.data, this.size, b);
+	}
+
+	/**
+	 * Solves L * x = b in place for the right-hand sides b[0], ..., b[numColumns - 1]. The right-hand sides are processed in blocks, so every row of L is read
+	 * once per block instead of once per right-hand side. Each b[r] gets exactly the result of {@link #solveLower(double[])}.
+	 */
+	public void solveLower(double[][] b, int numColumns)
+	{
+		PackedMatrices.solveLower(this.data, this.size, b, numColumns, SOLVE_BLOCK_SIZE);
+	}
+
+	/**
+	 * Solves L^T * x = b in place (back substitution) on the first size() entries of b.
+	 */
+	public void solveUpper(double[] b)
+	{
+		PackedMatrices.solveUpper(this.data, this.size, b);
+	}
+
+	/**
+	 * Sum of the logarithms of the diagonal, i.e. half the log-determinant of K.
+	 */
+	public double sumOfLogDiagonal()
+	{
+		double sum = 0;
+		for(int i = 0, offset = 0; i < this.size; offset += ++i)
+			sum += Math.log(this.data[offset + i]);
+		return sum;
+	}
+
+	/**
+	 * Appends one row for a new point, O(size()^2).
+	 *
+	 * @param k
+	 *            Covariances between the existing points and the new point. Overwritten with the new row l = L^-1 * k.
+	 * @param kappa
+	 *            Variance of the new point.
+	 * @return The new diagonal entry sqrt(kappa - l^T * l).
+	 * @throws IllegalArgumentException
+	 *             if the extended matrix is not positive definite, the factor is unchanged in that case.
+	 */
+	public double append(double[] k, double kappa)
+	{
+		this.solveLower(k);
+		double squaredNorm = 0;
+		for(int j = 0; j < this.size; j++)
+			squaredNorm += k[j] * k[j];
+		if(!(kappa - squaredNorm > 0))
+			throw new IllegalArgumentException("The extended matrix is not positive definite.");
+		double diagonal = Math.sqrt(kappa - squaredNorm);
+		this.ensureCapacity(this.size + 1);
+		int offset = packedLength(this.size);
+		System.arraycopy(k, 0, this.data, offset, this.size);
+		this.data[offset + this.size] = diagonal;
+		this.size++;
+		return diagonal;
+	}
+
+	/**
+	 * Appends m rows at once. With K12 the covariances between the existing and the new points and K22 those among the new points, the new rows are
+	 * [L21 L22] with L21 = K21 * L^-T and L22 the Cholesky factor of the Schur complement K22 - L21 * L21^T.
+	 *
+	 * @param cross
+	 *            cross[r] holds the covariances between the existing points and the new point r. Overwritten with row r of L21.
+	 * @param k22
+	 *            Covariances among the new points, only the lower triangle is read.
+	 * @throws IllegalArgumentException
+	 *             if the Schur complement is not positive definite, the factor is unchanged in that case.
+	 */
+	public void append(double[][] cross, double[][] k22)
+	{
+		int m = cross.length, n = this.size;
+		this.solveLower(cross, m);
+		// Schur complement and its factor, computed row by row in dense m x m storage.
+		double[][] l22 = new double[m][m];
+		for(int r = 0; r < m; r++)
+		{
+			for(int c = 0; c <= r; c++)
+			{
+				double sum = k22[r][c];
+				for(int j = 0; j < n; j++)
+					sum -= cross[r][j] * cross[c][j];
+				for(int j = 0; j < c; j++)
+					sum -= l22[r][j] * l22[c][j];
+				if(r == c)
+				{
+					if(!(sum > 0))
+						throw new IllegalArgumentException("The extended matrix is not positive definite.");
+					l22[r][r] = Math.sqrt(sum);
+				}
+				else
+					l22[r][c] = sum / l22[c][c];
+			}
+		}
+		this.ensureCapacity(n + m);
+		for(int r = 0; r < m; r++)
+		{
+			int offset = packedLength(n + r);
+			System.arraycopy(cross[r], 0, this.data, offset, n);
+			System.arraycopy(l22[r], 0, this.data, offset + n, r + 1);
+		}
+		this.size = n + m;
+	}
+
+	/**
+	 * Removes row and column p of K from the factor in O(size()^2) without refactorizing. The rows below p lose their entry in column p, and the trailing
+	 * block L33 gets the rank-one update L33 * L33^T + l32 * l32^T, where l32 is the removed column below the diagonal.
+	 */
+	public void remove(int p)
+	{
+		if(p < 0 || p >= this.size)
+			throw new IndexOutOfBoundsException("Row " + p + " of a factor with " + this.size + " rows.");
+		int n = this.size;
+		// Rank-one update of the trailing block in place, x starts as column p below the diagonal.
+		double[] x = new double[n];
+		for(int i = p + 1; i < n; i++)
+			x[i] = this.get(i, p);
+		for(int k = p + 1; k < n; k++)
+		{
+			int diagonal = k * (k + 1) / 2 + k;
+			double lkk = this.data[diagonal];
+			double r = Math.sqrt(lkk * lkk + x[k] * x[k]);
+			double c = r / lkk, s = x[k] / lkk;
+			this.data[diagonal] = r;
+			for(int i = k + 1; i < n; i++)
+			{
+				int index = i * (i + 1) / 2 + k;
+				this.data[index] = (this.data[index] + s * x[i]) / c;
+				x[i] = c * x[i] - s * this.data[index];
+			}
+		}
+		// Compact the packed rows, row i > p moves to i - 1 without column p. Targets are always left of their sources.
+		for(int i = p + 1; i < n; i++)
+		{
+			int from = i * (i + 1) / 2, to = (i - 1) * i / 2;
+			System.arraycopy(this.data, from, this.data, to, p);
+			System.arraycopy(this.data, from + p + 1, this.data, to + p, i - p);
+		}
+		this.size--;
+	}
+}
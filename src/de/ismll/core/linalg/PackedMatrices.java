@@ -0,0 +1,314 @@
+package de.ismll.core.linalg;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Routines on symmetric and lower triangular matrices stored packed row by row in a flat double[], entry (i, j) with j <= i at i * (i + 1) / 2 + j. A
+ * symmetric matrix keeps only its lower triangle. All routines work in place and allocate nothing.
+ * <p>
+ * The Cholesky decomposition subtracts the contributions of the columns of every entry in ascending order and scales by the reciprocal of the diagonal,
+ * like the decomposition of commons-math. Both give bit-identical factors independent of the block size and of the number of threads.
+ */
+public abstract class PackedMatrices
+{
+	/**
+	 * Default number of columns per panel of {@link #cholesky(double[], int, int)}.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	/**
+	 * Diagonal entries which are not larger before taking the square root are considered not positive definite, as in commons-math.
+	 */
+	public static final double POSITIVITY_THRESHOLD = 1E-10;
+
+	/**
+	 * Minimum number of multiply-adds of a task of the parallel Cholesky decomposition, smaller row ranges are not split further.
+	 */
+	private static final long MIN_TASK_WORK = 1L << 16;
+
+	/**
+	 * Number of entries of a packed n x n triangle.
+	 */
+	public static int length(int n)
+	{
+		long length = (long) n * (n + 1) / 2;
+		if(length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("A packed matrix with " + n + " rows is too large.");
+		return (int) length;
+	}
+
+	/**
+	 * Index of entry (i, j) of a packed symmetric matrix, either triangle may be addressed.
+	 */
+	public static int index(int i, int j)
+	{
+		return i >= j ? i * (i + 1) / 2 + j : j * (j + 1) / 2 + i;
+	}
+
+	/**
+	 * Overwrites the packed symmetric matrix a with its lower Cholesky factor, see {@link #cholesky(double[], int, int, ForkJoinPool)}.
+	 */
+	public static boolean cholesky(double[] a, int n)
+	{
+		return cholesky(a, n, DEFAULT_BLOCK_SIZE, null);
+	}
+
+	public static boolean cholesky(double[] a, int n, int blockSize)
+	{
+		return cholesky(a, n, blockSize, null);
+	}
+
+	/**
+	 * Overwrites the packed symmetric matrix a with its lower Cholesky factor (right-looking, blocked). The columns are processed in panels of blockSize
+	 * columns: the diagonal block of a panel is factorized, the rows below it are solved against it and finally the panel is subtracted from all rows and
+	 * columns right of it. The trailing update reads the rows of the panel only, which stay in cache.
+	 * <p>
+	 * With a pool, the rows below the diagonal block and the rows of the trailing update are split into tasks of about equal work. Every entry is computed
+	 * by exactly one task in the same order as without a pool, so the factor does not depend on the number of threads.
+	 *
+	 * @param pool
+	 *            Runs the panel and trailing updates, null computes everything in the calling thread.
+	 * @return false if a is not positive definite, a is partially overwritten in that case.
+	 */
+	public static boolean cholesky(double[] a, int n, int blockSize, ForkJoinPool pool)
+	{
+		for(int start = 0; start < n; start += blockSize)
+		{
+			int end = Math.min(n, start + blockSize);
+			if(!factorizeDiagonalBlock(a, start, end))
+				return false;
+			if(pool == null)
+			{
+				solvePanelRows(a, start, end, end, n);
+				updateTrailing(a, start, end, end, n);
+			}
+			else
+			{
+				invoke(pool, new PanelTask(a, start, end, end, n, false));
+				invoke(pool, new PanelTask(a, start, end, end, n, true));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the task in the pool. Inside a task of the same pool, e.g. while experts are trained in parallel, it is forked from the current worker instead of
+	 * being submitted from outside.
+	 */
+	private static void invoke(ForkJoinPool pool, RecursiveAction task)
+	{
+		if(ForkJoinTask.getPool() == pool)
+			task.invoke();
+		else
+			pool.invoke(task);
+	}
+
+	/**
+	 * Factorizes the diagonal block of the columns [start, end) row by row. The contributions of the columns before start must already be subtracted.
+	 */
+	private static boolean factorizeDiagonalBlock(double[] a, int start, int end)
+	{
+		for(int i = start, rowI = start * (start + 1) / 2; i < end; rowI += ++i)
+		{
+			solveRow(a, rowI, start, i);
+			double sum = a[rowI + i];
+			for(int k = start; k < i; k++)
+				sum -= a[rowI + k] * a[rowI + k];
+			if(!(sum > POSITIVITY_THRESHOLD))
+				return false;
+			a[rowI + i] = Math.sqrt(sum);
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the entries of the row starting at rowI in the columns [start, end), whose diagonal entries are already factorized.
+	 */
+	private static void solveRow(double[] a, int rowI, int start, int end)
+	{
+		for(int j = start, rowJ = start * (start + 1) / 2; j < end; rowJ += ++j)
+		{
+			double s = a[rowI + j];
+			for(int k = start; k < j; k++)
+				s -= a[rowI + k] * a[rowJ + k];
+			a[rowI + j] = s * (1.0 / a[rowJ + j]);
+		}
+	}
+
+	/**
+	 * Computes the columns [start, end) of the rows [from, to) below the factorized diagonal block.
+	 */
+	private static void solvePanelRows(double[] a, int start, int end, int from, int to)
+	{
+		for(int i = from, rowI = from * (from + 1) / 2; i < to; rowI += ++i)
+			solveRow(a, rowI, start, end);
+	}
+
+	/**
+	 * Subtracts the panel of the columns [start, end) from the entries (i, j) with end <= j <= i and i in [from, to), one column after the other. Four
+	 * entries of a row are updated together, their sums are independent and the row of the panel is read once for all four.
+	 */
+	private static void updateTrailing(double[] a, int start, int end, int from, int to)
+	{
+		for(int i = from, rowI = from * (from + 1) / 2; i < to; rowI += ++i)
+		{
+			int j = end, rowJ = end * (end + 1) / 2;
+			for(; j + 3 <= i; j += 4)
+			{
+				int rowJ1 = rowJ + j + 1, rowJ2 = rowJ1 + j + 2, rowJ3 = rowJ2 + j + 3;
+				double s0 = a[rowI + j], s1 = a[rowI + j + 1], s2 = a[rowI + j + 2], s3 = a[rowI + j + 3];
+				for(int k = start; k < end; k++)
+				{
+					double x = a[rowI + k];
+					s0 -= x * a[rowJ + k];
+					s1 -= x * a[rowJ1 + k];
+					s2 -= x * a[rowJ2 + k];
+					s3 -= x * a[rowJ3 + k];
+				}
+				a[rowI + j] = s0;
+				a[rowI + j + 1] = s1;
+				a[rowI + j + 2] = s2;
+				a[rowI + j + 3] = s3;
+				rowJ = rowJ3 + j + 4;
+			}
+			for(; j <= i; rowJ += ++j)
+			{
+				double s = a[rowI + j];
+				for(int k = start; k < end; k++)
+					s -= a[rowI + k] * a[rowJ + k];
+				a[rowI + j] = s;
+			}
+		}
+	}
+
+	/**
+	 * The panel rows or the trailing update of the rows [from, to), split in halves of about equal work.
+	 */
+	private static class PanelTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final double[] a;
+
+		private final int start, end, from, to;
+
+		private final boolean trailing;
+
+		PanelTask(double[] a, int start, int end, int from, int to, boolean trailing)
+		{
+			this.a = a;
+			this.start = start;
+			this.end = end;
+			this.from = from;
+			this.to = to;
+			this.trailing = trailing;
+		}
+
+		/**
+		 * Multiply-adds of the rows [end, i).
+		 */
+		private long work(int i)
+		{
+			long width = this.end - this.start, rows = i - this.end;
+			return this.trailing ? width * rows * (rows + 1) / 2 : width * width / 2 * rows;
+		}
+
+		@Override
+		protected void compute()
+		{
+			long work = this.work(this.to) - this.work(this.from);
+			if(this.to - this.from > 1 && work > MIN_TASK_WORK)
+			{
+				// Row at which half of the work is done, the rows of the trailing update get longer.
+				int mid = (this.from + this.to) >>> 1;
+				if(this.trailing)
+				{
+					double u = this.from - this.end, v = this.to - this.end;
+					mid = this.end + (int) Math.sqrt((u * u + v * v) / 2);
+					mid = Math.max(this.from + 1, Math.min(this.to - 1, mid));
+				}
+				invokeAll(new PanelTask(this.a, this.start, this.end, this.from, mid, this.trailing), new PanelTask(this.a, this.start, this.end, mid, this.to,
+						this.trailing));
+			}
+			else if(this.trailing)
+				updateTrailing(this.a, this.start, this.end, this.from, this.to);
+			else
+				solvePanelRows(this.a, this.start, this.end, this.from, this.to);
+		}
+	}
+
+	/**
+	 * Solves L * x = b in place (forward substitution) on the first n entries of b.
+	 */
+	public static void solveLower(double[] l, int n, double[] b)
+	{
+		for(int i = 0, offset = 0; i < n; offset += ++i)
+		{
+			double sum = b[i];
+			for(int j = 0; j < i; j++)
+				sum -= l[offset + j] * b[j];
+			b[i] = sum / l[offset + i];
+		}
+	}
+
+	/**
+	 * Solves L * x = b in place for the right-hand sides b[0], ..., b[numColumns - 1]. The right-hand sides are processed in blocks of blockSize, so every row
+	 * of L is read once per block instead of once per right-hand side. Each b[r] gets exactly the result of {@link #solveLower(double[], int, double[])}.
+	 */
+	public static void solveLower(double[] l, int n, double[][] b, int numColumns, int blockSize)
+	{
+		for(int start = 0; start < numColumns; start += blockSize)
+		{
+			int end = Math.min(numColumns, start + blockSize);
+			for(int i = 0, offset = 0; i < n; offset += ++i)
+			{
+				double diagonal = l[offset + i];
+				for(int r = start; r < end; r++)
+				{
+					double[] x = b[r];
+					double sum = x[i];
+					for(int j = 0; j < i; j++)
+						sum -= l[offset + j] * x[j];
+					x[i] = sum / diagonal;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Solves L^T * x = b in place (back substitution) on the first n entries of b.
+	 */
+	public static void solveUpper(double[] l, int n, double[] b)
+	{
+		for(int i = n - 1; i >= 0; i--)
+		{
+			int offset = i * (i + 1) / 2;
+			double x = b[i] / l[offset + i];
+			b[i] = x;
+			for(int j = 0; j < i; j++)
+				b[j] -= x * l[offset + j];
+		}
+	}
+
+	/**
+	 * Overwrites the packed lower triangular matrix l with its inverse, column by column by forward substitution.
+	 */
+	public static void invertLower(double[] l, int n)
+	{
+		for(int j = 0; j < n; j++)
+		{
+			int diagonal = j * (j + 1) / 2 + j;
+			l[diagonal] = 1 / l[diagonal];
+			// Entries (i, k) with k > j still hold L, those of column j below i already hold the inverse.
+			for(int i = j + 1, rowI = (j + 1) * (j + 2) / 2; i < n; rowI += ++i)
+			{
+				double sum = 0;
+				for(int k = j, rowK = diagonal - j; k < i; rowK += ++k)
+					sum += l[rowI + k] * l[rowK + j];
+				l[rowI + j] = -sum / l[rowI + i];
+			}
+		}
+	}
+}
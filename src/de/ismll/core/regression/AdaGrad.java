@@ -0,0 +1,28 @@
+package de.ismll.core.regression;
+
+import java.util.logging.Level;
+
+import de.ismll.core.Logger;
+
+/**
+ * The update rule of the kernel itself (AdaGrad for the SE kernels), run for a fixed number of epochs. The parameters are reinitialized in the first epoch.
+ */
+public class AdaGrad implements KernelOptimizer
+{
+	@Override
+	public void optimize(GaussianProcessRegression gp)
+	{
+		for(int iter = 0; iter < gp.getEpochs(); iter++)
+		{
+			gp.factorize();
+
+			// To avoid computing the negative log-likelihood if not necessary.
+			if(Logger.LEVEL == Level.FINE || Logger.LEVEL == Level.FINER || Logger.LEVEL == Level.FINEST)
+			{
+				if(iter % 10 == 9)
+					Logger.fine("Negative log-likelihood in epoch " + (iter + 1) + " of " + gp.getEpochs() + ": " + -gp.getLogLikelihood());
+			}
+			gp.updateKernelParameters(iter == 0);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package de.ismll.core.regression;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import de.ismll.core.Instance;
+import de.ismll.core.Instances;
+import de.ismll.kernel.Kernel;
+
+/**
+ * Covariances between candidates and the training points of a {@link GaussianProcessRegression}. Candidates are identified by reference, the row of a
+ * candidate holds k(x_i, candidate) for the first training points. Rows are extended lazily, so after new training points were appended only their columns
+ * are computed. Rows are kept in double or, to halve the memory, in float precision.
+ * <p>
+ * The entries are only valid for the kernel parameters they were computed with, {@link #clear()} has to be called whenever they change.
+ */
+class CrossKernelCache
+{
+	private final boolean singlePrecision;
+
+	private final IdentityHashMap<Instance, Integer> rows = new IdentityHashMap<Instance, Integer>();
+
+	private double[][] doubleRows = new double[0][];
+
+	private float[][] floatRows = new float[0][];
+
+	/**
+	 * Number of valid entries of every row.
+	 */
+	private int[] lengths = new int[0];
+
+	CrossKernelCache(boolean singlePrecision)
+	{
+		this.singlePrecision = singlePrecision;
+	}
+
+	boolean isSinglePrecision()
+	{
+		return this.singlePrecision;
+	}
+
+	void clear()
+	{
+		this.rows.clear();
+		this.doubleRows = new double[0][];
+		this.floatRows = new float[0][];
+		this.lengths = new int[0];
+	}
+
+	/**
+	 * Writes k(x_i, candidate) for all training points x_i into kStar. Only entries which are not cached yet are computed by the kernel.
+	 */
+	void get(Instance candidate, Instances train, Kernel kernel, double[] kStar)
+	{
+		int n = train.numInstances();
+		Integer row = this.rows.get(candidate);
+		if(row == null)
+		{
+			row = this.rows.size();
+			this.rows.put(candidate, row);
+			if(row == this.lengths.length)
+			{
+				int capacity = Math.max(16, 2 * row);
+				this.lengths = Arrays.copyOf(this.lengths, capacity);
+				if(this.singlePrecision)
+					this.floatRows = Arrays.copyOf(this.floatRows, capacity);
+				else
+					this.doubleRows = Arrays.copyOf(this.doubleRows, capacity);
+			}
+		}
+		int length = this.lengths[row];
+		// Rows get spare capacity since training points are appended one at a time.
+		if(this.singlePrecision)
+		{
+			float[] values = this.floatRows[row];
+			if(values == null || values.length < n)
+				values = this.floatRows[row] = values == null ? new float[2 * n] : Arrays.copyOf(values, 2 * n);
+			for(int i = length; i < n; i++)
+				values[i] = (float) kernel.computeValue(train.instance(i), candidate);
+			for(int i = 0; i < n; i++)
+				kStar[i] = values[i];
+		}
+		else
+		{
+			double[] values = this.doubleRows[row];
+			if(values == null || values.length < n)
+				values = this.doubleRows[row] = values == null ? new double[2 * n] : Arrays.copyOf(values, 2 * n);
+			for(int i = length; i < n; i++)
+				values[i] = kernel.computeValue(train.instance(i), candidate);
+			System.arraycopy(values, 0, kStar, 0, n);
+		}
+		this.lengths[row] = Math.max(length, n);
+	}
+
+	/**
+	 * Removes the column of the training point at index, the columns after it move one to the left.
+	 */
+	void removeColumn(int index)
+	{
+		for(int row = 0; row < this.rows.size(); row++)
+		{
+			int length = this.lengths[row];
+			if(length <= index)
+				continue;
+			if(this.singlePrecision)
+				System.arraycopy(this.floatRows[row], index + 1, this.floatRows[row], index, length - index - 1);
+			else
+				System.arraycopy(this.doubleRows[row], index + 1, this.doubleRows[row], index, length - index - 1);
+			this.lengths[row] = length - 1;
+		}
+	}
+}
@@ -1,25 +1,39 @@
 package de.ismll.core.regression;
 
-import java.util.logging.Level;
-
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.CholeskyDecomposition;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
-import de.ismll.core.Logger;
+import de.ismll.core.linalg.CholeskyFactor;
+import de.ismll.core.linalg.PackedMatrices;
 import de.ismll.kernel.Kernel;
 import de.ismll.kernel.SEKernel;
 
 public class GaussianProcessRegression implements Regression
 {
-	private RealVector alpha;
-
-	private RealMatrix L;
+	/**
+	 * Eviction policies of the sliding window: the point added first, the point with the lowest target or the point with the smallest weight |alpha_i| in
+	 * the predictive mean.
+	 */
+	public static final int EVICT_OLDEST = 0;
+	public static final int EVICT_LOWEST_TARGET = 1;
+	public static final int EVICT_LEAST_INFORMATIVE = 2;
+
+	/**
+	 * Number of candidates whose cross-kernel rows are held at the same time by {@link #predictWithUncertainty(List, double[], double[])}.
+	 */
+	private static final int PREDICT_BLOCK_SIZE = 256;
+
+	private double[] alpha;
+
+	/**
+	 * Cholesky factor of K, its storage is reused by every factorization.
+	 */
+	private CholeskyFactor L = new CholeskyFactor(1);
 
 	public Instances instances;
 
@@ -27,67 +41,160 @@ public class GaussianProcessRegression implements Regression
 
 	private boolean learnKernelParameters = false;
 
-	private RealVector y;
+	private double[] y;
+
+	/**
+	 * L^-1 * y, kept to extend alpha when points are appended.
+	 */
+	private double[] z;
 
 	private int epochs = 10;
 
 	private double jitter = 1E-8;
 
+	/**
+	 * Kernel matrix (including jitter) of the current factorization, packed symmetric, see {@link PackedMatrices}. Reused by every factorization.
+	 */
+	private double[] K = new double[0];
+
+	private KernelOptimizer kernelOptimizer = new AdaGrad();
+
+	private int choleskyBlockSize = PackedMatrices.DEFAULT_BLOCK_SIZE;
+
+	/**
+	 * Runs the Cholesky decompositions in parallel, null decomposes in the calling thread.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Maximum number of training points, 0 means unbounded.
+	 */
+	private int windowSize = 0;
+
+	private int evictionPolicy = EVICT_OLDEST;
+
+	/**
+	 * For every training point the number of points added before it since train, used to find the oldest point.
+	 */
+	private int[] insertionIndices;
+
+	private int numInserted;
+
+	/**
+	 * Workspace of the batch prediction, one row of covariances with the training points per candidate of a block.
+	 */
+	private double[][] crossKernel = new double[0][];
+
+	private boolean trackCandidates = false;
+
+	/**
+	 * Row of every tracked candidate in the arrays below, candidates are identified by reference.
+	 */
+	private final IdentityHashMap<Instance, Integer> trackedCandidates = new IdentityHashMap<Instance, Integer>();
+
+	private Instance[] trackedInstances = new Instance[0];
+
+	/**
+	 * L^-1 * k* of every tracked candidate for the current factor.
+	 */
+	private double[][] trackedSolves = new double[0][];
+
+	/**
+	 * Predictive variance of every tracked candidate for the current factor.
+	 */
+	private double[] trackedVariances = new double[0];
+
+	/**
+	 * Covariances between candidates and training points, null if they are not cached.
+	 */
+	private CrossKernelCache crossKernelCache;
+
 	@Override
 	public void train(Instances instances)
 	{
 		this.instances = instances;
+		this.numInserted = instances.numInstances();
+		this.insertionIndices = new int[Math.max(1, this.numInserted)];
+		for(int i = 0; i < this.numInserted; i++)
+			this.insertionIndices[i] = i;
+		// Points which can be chosen without a model are dropped before the factorization.
+		if(this.windowSize > 0 && this.evictionPolicy != EVICT_LEAST_INFORMATIVE)
+		{
+			while(instances.numInstances() > this.windowSize)
+			{
+				int index = this.selectEviction();
+				instances.remove(index);
+				this.removeInsertionIndex(index);
+			}
+		}
 
-		double[] t = new double[instances.numInstances()];
-		for(int i = 0; i < instances.numInstances(); i++)
-			t[i] = instances.instance(i).target();
 		if(this.learnKernelParameters)
 		{
 			// Logger.info("Learning Kernel parameters for " + this.epochs + " epochs.");
-			for(int iter = 0; iter < this.epochs; iter++)
-			{
-				RealMatrix K = MatrixUtils.createRealMatrix(this.kernel.computeKernel(this.instances));
-				CholeskyDecomposition cd = this.choleskyDecomposition(K);
-				this.L = cd.getL();
-				this.alpha = this.estimateAlpha();
-
-				// To avoid computing the negative log-likelihood if not necessary.
-				if(Logger.LEVEL == Level.FINE || Logger.LEVEL == Level.FINER || Logger.LEVEL == Level.FINEST)
-				{
-					if(iter % 10 == 9)
-						Logger.fine("Negative log-likelihood in epoch " + (iter + 1) + " of " + this.epochs + ": " + this.computeNegativeLogLikelihood());
-				}
-				this.kernel.updateKernelParameters(instances, K, alpha, iter == 0);
-			}
+			this.kernelOptimizer.optimize(this);
 		}
 
 		// Logger.info("Kernel information:\n" + this.kernel.toString());
 
-		RealMatrix K = MatrixUtils.createRealMatrix(this.kernel.computeKernel(this.instances));
+		this.factorize();
+		this.evict();
+	}
+
+	/**
+	 * Computes the kernel matrix of the training instances for the current kernel parameters, its Cholesky factor and alpha.
+	 */
+	public void factorize()
+	{
+		int n = this.instances.numInstances();
+		if(this.K.length < PackedMatrices.length(n))
+			this.K = new double[PackedMatrices.length(n)];
+		this.kernel.computeKernel(this.instances, this.K);
+		this.choleskyDecomposition(n);
+		this.trackedCandidates.clear();
+		if(this.crossKernelCache != null)
+			this.crossKernelCache.clear();
+		this.estimateAlpha();
+	}
+
+	/**
+	 * One step of the update rule of the kernel itself for the current factorization, see
+	 * {@link Kernel#updateKernelParameters(Instances, CholeskyFactor, double[], boolean)}.
+	 */
+	public void updateKernelParameters(boolean initialize)
+	{
+		this.kernel.updateKernelParameters(this.instances, this.L, this.alpha, initialize);
+	}
+
+	/**
+	 * Log marginal likelihood of the training targets for the current factorization.
+	 */
+	public double getLogLikelihood()
+	{
+		return -0.5 * dotProduct(this.y, this.alpha, this.L.size()) - this.L.sumOfLogDiagonal() - this.L.size() / 2d * Math.log(2 * Math.PI);
+	}
 
-		CholeskyDecomposition cd = this.choleskyDecomposition(K);
-		this.L = cd.getL();
-		this.alpha = this.estimateAlpha();
+	/**
+	 * Gradient of {@link #getLogLikelihood()} with respect to the parameters of the kernel, see {@link Kernel#getParameters()}.
+	 */
+	public double[] getLogLikelihoodGradient()
+	{
+		return this.kernel.computeGradient(this.instances, this.L, this.alpha);
 	}
 
-	private CholeskyDecomposition choleskyDecomposition(RealMatrix K)
+	/**
+	 * Factorizes the first n rows of K into L. Jitter is added to the diagonal of K until the decomposition succeeds.
+	 */
+	private void choleskyDecomposition(int n)
 	{
-		CholeskyDecomposition cd = null;
 		boolean passed = false;
 		int numNotPassed = 0;
 		while(!passed && numNotPassed < 10)
 		{
-			try
-			{
-				for(int i = 0; i < K.getRowDimension(); i++)
-					K.setEntry(i, i, K.getEntry(i, i) + this.jitter);
-				cd = new CholeskyDecomposition(K);
-				passed = true;
-			}
-			catch(NonPositiveDefiniteMatrixException e)
-			{
+			for(int i = 0; i < n; i++)
+				this.K[i * (i + 1) / 2 + i] += this.jitter;
+			passed = this.L.decompose(this.K, n, this.choleskyBlockSize, this.pool);
+			if(!passed)
 				this.jitter *= 1.01;
-			}
 			numNotPassed++;
 		}
 		if(!passed)
@@ -95,34 +202,60 @@ public class GaussianProcessRegression implements Regression
 			throw new IllegalArgumentException("Adding Jitter did not work.");
 		}
 		this.jitter = 1E-8;
-		return cd;
 	}
 
-	private RealVector estimateAlpha()
+	private void estimateAlpha()
 	{
 		double[] yArray = new double[instances.numInstances()];
 		for(int i = 0; i < instances.numInstances(); i++)
 			yArray[i] = instances.instance(i).target();
 
-		RealVector alpha = new ArrayRealVector(yArray);
-		this.y = new ArrayRealVector(yArray);
-		MatrixUtils.solveLowerTriangularSystem(this.L, alpha);
-		MatrixUtils.solveUpperTriangularSystem(this.L.transpose(), alpha);
-		return alpha;
+		this.y = yArray;
+		this.z = yArray.clone();
+		this.L.solveLower(this.z);
+		this.alpha = this.z.clone();
+		this.L.solveUpper(this.alpha);
+	}
+
+	/**
+	 * Updates alpha after the rows from numOld on were appended to L or targets of the old points changed. L^-1 * y only depends on the targets up to its row,
+	 * so it is kept up to the first changed target and extended by forward substitution from there, which leaves one back substitution. Relabeling the last
+	 * rows therefore costs O(n) per row instead of a full solve, the result is the same as that of {@link #estimateAlpha()}.
+	 */
+	private void updateAlpha(int numOld)
+	{
+		int first = 0;
+		while(first < numOld && this.instances.instance(first).target() == this.y[first])
+			first++;
+		int n = this.L.size();
+		double[] data = this.L.getData();
+		this.y = Arrays.copyOf(this.y, n);
+		this.z = Arrays.copyOf(this.z, n);
+		for(int i = first, offset = first * (first + 1) / 2; i < n; offset += ++i)
+		{
+			this.y[i] = this.instances.instance(i).target();
+			double sum = this.y[i];
+			for(int j = 0; j < i; j++)
+				sum -= data[offset + j] * this.z[j];
+			this.z[i] = sum / data[offset + i];
+		}
+		this.alpha = this.z.clone();
+		this.L.solveUpper(this.alpha);
 	}
 
-	private double computeNegativeLogLikelihood()
+	private static double dotProduct(double[] a, double[] b, int length)
 	{
-		double logDeterminant = 0;
-		for(int i = 0; i < this.L.getColumnDimension(); i++)
-			logDeterminant += Math.log(this.L.getEntry(i, i)) / Math.log(Math.E);
-		return -0.5 * this.y.dotProduct(alpha) - logDeterminant - this.L.getColumnDimension() / 2 * Math.log(2 * Math.PI) / Math.log(Math.E);
+		double sum = 0;
+		for(int i = 0; i < length; i++)
+			sum += a[i] * b[i];
+		return sum;
 	}
 
+
 	@Override
 	public double predict(Instance instance)
 	{
-		return this.getKStar(instance).dotProduct(this.alpha);
+		return dotProduct(this.getKStar(instance), this.alpha, this.alpha.length);
 	}
 
 	public double[] predictWithUncertainty(Instance instance)
@@ -130,37 +263,376 @@ public class GaussianProcessRegression implements Regression
 		if(this.instances == null)
 			return new double[] { 0, Double.POSITIVE_INFINITY };
 		double[] pred = new double[2];
-		ArrayRealVector kStar = this.getKStar(instance);
-		pred[0] = kStar.dotProduct(this.alpha);
-		MatrixUtils.solveLowerTriangularSystem(this.L, kStar);
-		pred[1] = Math.sqrt(-kStar.dotProduct(kStar) + this.kernelFunction(instance, instance));
+		double[] kStar = this.getKStar(instance);
+		pred[0] = dotProduct(kStar, this.alpha, kStar.length);
+		this.L.solveLower(kStar);
+		pred[1] = Math.sqrt(-dotProduct(kStar, kStar, kStar.length) + this.kernelFunction(instance, instance));
 		return pred;
 	}
 
+	/**
+	 * Predictive means and variances of several candidates at once, written to means[i] and variances[i]. Per block of candidates the covariances with the
+	 * training points are computed in one pass, the means are their products with alpha and all rows are solved together by
+	 * {@link CholeskyFactor#solveLower(double[][], int)}. The workspace is reused between calls.
+	 */
+	public void predictWithUncertainty(List<Instance> candidates, double[] means, double[] variances)
+	{
+		int m = candidates.size();
+		if(this.instances == null)
+		{
+			Arrays.fill(means, 0, m, 0);
+			Arrays.fill(variances, 0, m, Double.POSITIVE_INFINITY);
+			return;
+		}
+		int n = this.instances.numInstances();
+		if(this.trackCandidates)
+		{
+			this.retainTrackedCandidates(candidates);
+			this.trackNewCandidates(candidates);
+			for(int c = 0; c < m; c++)
+			{
+				int row = this.trackedCandidates.get(candidates.get(c));
+				means[c] = dotProduct(this.trackedSolves[row], this.z, n);
+				variances[c] = this.trackedVariances[row];
+			}
+			return;
+		}
+		int blockSize = Math.min(m, PREDICT_BLOCK_SIZE);
+		this.ensureCrossKernelCapacity(blockSize, n);
+		for(int start = 0; start < m; start += blockSize)
+		{
+			int end = Math.min(m, start + blockSize);
+			this.solveCrossKernel(candidates, start, end, this.crossKernel, means);
+			for(int c = start; c < end; c++)
+			{
+				Instance candidate = candidates.get(c);
+				double[] v = this.crossKernel[c - start];
+				variances[c] = -dotProduct(v, v, n) + this.kernelFunction(candidate, candidate);
+			}
+		}
+	}
+
+	/**
+	 * Computes k* for the candidates in [start, end) into rows[c - start] and solves them with L. If means is not null, means[c] is set to k* * alpha.
+	 */
+	private void solveCrossKernel(List<Instance> candidates, int start, int end, double[][] rows, double[] means)
+	{
+		int n = this.instances.numInstances();
+		for(int c = start; c < end; c++)
+		{
+			Instance candidate = candidates.get(c);
+			double[] kStar = rows[c - start];
+			if(this.crossKernelCache != null)
+				this.crossKernelCache.get(candidate, this.instances, this.kernel, kStar);
+			else
+				for(int i = 0; i < n; i++)
+					kStar[i] = this.kernelFunction(this.instances.instance(i), candidate);
+			if(means != null)
+				means[c] = dotProduct(kStar, this.alpha, n);
+		}
+		this.L.solveLower(rows, end - start);
+	}
+
+	private void ensureCrossKernelCapacity(int blockSize, int n)
+	{
+		if(this.crossKernel.length < blockSize)
+			this.crossKernel = Arrays.copyOf(this.crossKernel, blockSize);
+		// Rows get spare capacity since online updates add one training point at a time.
+		for(int r = 0; r < blockSize; r++)
+			if(this.crossKernel[r] == null || this.crossKernel[r].length < n)
+				this.crossKernel[r] = new double[2 * n];
+	}
+
+	/**
+	 * Stops tracking the candidates which are not among the given ones, e.g. because they were evaluated and left the pool. The remaining rows are moved to
+	 * the front in their order, the solves of the dropped rows are kept for reuse.
+	 */
+	private void retainTrackedCandidates(List<Instance> candidates)
+	{
+		int numTracked = this.trackedCandidates.size();
+		boolean[] retained = new boolean[numTracked];
+		int numRetained = 0;
+		for(Instance candidate : candidates)
+		{
+			Integer row = this.trackedCandidates.get(candidate);
+			if(row != null && !retained[row])
+			{
+				retained[row] = true;
+				numRetained++;
+			}
+		}
+		if(numRetained == numTracked)
+			return;
+		int next = 0;
+		for(int row = 0; row < numTracked; row++)
+		{
+			Instance candidate = this.trackedInstances[row];
+			if(!retained[row])
+			{
+				this.trackedCandidates.remove(candidate);
+				continue;
+			}
+			double[] free = this.trackedSolves[next];
+			this.trackedSolves[next] = this.trackedSolves[row];
+			this.trackedSolves[row] = free;
+			this.trackedInstances[next] = candidate;
+			this.trackedVariances[next] = this.trackedVariances[row];
+			this.trackedCandidates.put(candidate, next);
+			next++;
+		}
+		Arrays.fill(this.trackedInstances, next, numTracked, null);
+	}
+
+	/**
+	 * Starts tracking the candidates which are not tracked yet. Their solves are computed in one batch like in
+	 * {@link #predictWithUncertainty(List, double[], double[])}.
+	 */
+	private void trackNewCandidates(List<Instance> candidates)
+	{
+		ArrayList<Instance> missing = new ArrayList<Instance>();
+		for(Instance candidate : candidates)
+			if(!this.trackedCandidates.containsKey(candidate))
+				missing.add(candidate);
+		int numMissing = missing.size();
+		if(numMissing == 0)
+			return;
+		int n = this.instances.numInstances();
+		int numTracked = this.trackedCandidates.size();
+		if(numTracked + numMissing > this.trackedSolves.length)
+		{
+			int capacity = Math.max(numTracked + numMissing, 2 * this.trackedSolves.length);
+			this.trackedInstances = Arrays.copyOf(this.trackedInstances, capacity);
+			this.trackedSolves = Arrays.copyOf(this.trackedSolves, capacity);
+			this.trackedVariances = Arrays.copyOf(this.trackedVariances, capacity);
+		}
+		double[][] rows = new double[numMissing][];
+		for(int r = 0; r < numMissing; r++)
+		{
+			int row = numTracked + r;
+			// Solves of rows freed by an invalidation are reused.
+			if(this.trackedSolves[row] == null || this.trackedSolves[row].length < n)
+				this.trackedSolves[row] = new double[2 * n];
+			rows[r] = this.trackedSolves[row];
+		}
+		this.solveCrossKernel(missing, 0, numMissing, rows, null);
+		for(int r = 0; r < numMissing; r++)
+		{
+			Instance candidate = missing.get(r);
+			int row = numTracked + r;
+			this.trackedCandidates.put(candidate, row);
+			this.trackedInstances[row] = candidate;
+			this.trackedVariances[row] = -dotProduct(rows[r], rows[r], n) + this.kernelFunction(candidate, candidate);
+		}
+	}
+
+	/**
+	 * Extends the solves of the tracked candidates after the rows from numOld on were appended to L. Each new entry is one step of forward substitution and
+	 * lowers the variance by its square, so a candidate costs O(n) per added point instead of a new k* and a full solve. If the window forces an eviction
+	 * afterwards, the solves are dropped instead since the eviction invalidates them anyway.
+	 */
+	private void extendTrackedSolves(int numOld)
+	{
+		if(this.windowSize > 0 && this.L.size() > this.windowSize)
+			this.trackedCandidates.clear();
+		int numTracked = this.trackedCandidates.size();
+		if(numTracked == 0)
+			return;
+		int n = this.L.size();
+		double[] data = this.L.getData();
+		double[] kStar = this.crossKernelCache != null ? new double[n] : null;
+		for(int row = 0; row < numTracked; row++)
+		{
+			Instance candidate = this.trackedInstances[row];
+			double[] v = this.trackedSolves[row];
+			if(v.length < n)
+				v = this.trackedSolves[row] = Arrays.copyOf(v, 2 * n);
+			if(kStar != null)
+				this.crossKernelCache.get(candidate, this.instances, this.kernel, kStar);
+			for(int i = numOld, offset = numOld * (numOld + 1) / 2; i < n; offset += ++i)
+			{
+				double sum = kStar != null ? kStar[i] : this.kernelFunction(this.instances.instance(i), candidate);
+				for(int j = 0; j < i; j++)
+					sum -= data[offset + j] * v[j];
+				v[i] = sum / data[offset + i];
+				this.trackedVariances[row] -= v[i] * v[i];
+			}
+		}
+	}
+
 	public void onlineUpdate(Instance instance)
 	{
 		if(this.instances == null)
 			throw new IllegalArgumentException("Model was not trained before so it cannot be updated");
-		RealVector l = this.getKStar(instance);
-		MatrixUtils.solveLowerTriangularSystem(this.L, l);
-		double lStar = Math.sqrt(this.kernelFunction(instance, instance) - l.dotProduct(l));
-		RealMatrix L_new = MatrixUtils.createRealMatrix(this.L.getRowDimension() + 1, this.L.getColumnDimension() + 1);
-		L_new.setSubMatrix(this.L.getData(), 0, 0);
-		L_new.setEntry(L_new.getRowDimension() - 1, L_new.getColumnDimension() - 1, lStar);
-		L_new.setSubMatrix(new double[][] { l.toArray() }, L_new.getRowDimension() - 1, 0);
-		this.L = L_new;
+		int numOld = this.L.size();
+		this.appendToFactor(this.getKStar(instance), this.kernelFunction(instance, instance));
 		this.instances.add(instance);
-		this.alpha = this.estimateAlpha();
+		this.addInsertionIndices(1);
+		this.kernel.instancesAdded(this.instances);
+		this.updateAlpha(numOld);
+		this.extendTrackedSolves(numOld);
+		this.evict();
+	}
+
+	/**
+	 * Adds several instances at once with a rank-k append of the Cholesky factor.
+	 */
+	public void onlineUpdate(Instances newInstances)
+	{
+		if(this.instances == null)
+			throw new IllegalArgumentException("Model was not trained before so it cannot be updated");
+		int m = newInstances.numInstances();
+		double[][] cross = new double[m][];
+		double[][] k22 = new double[m][m];
+		for(int r = 0; r < m; r++)
+		{
+			cross[r] = this.getKStar(newInstances.instance(r));
+			for(int c = 0; c <= r; c++)
+				k22[r][c] = this.kernelFunction(newInstances.instance(r), newInstances.instance(c));
+		}
+		int numOld = this.L.size();
+		this.appendToFactor(cross, k22);
+		for(Instance instance : newInstances)
+			this.instances.add(instance);
+		this.addInsertionIndices(m);
+		this.kernel.instancesAdded(this.instances);
+		this.updateAlpha(numOld);
+		this.extendTrackedSolves(numOld);
+		this.evict();
+	}
+
+	/**
+	 * Appends the row of a new point to L. If the extended matrix is not positive definite, e.g. for a point which is numerically a duplicate, jitter is added
+	 * to the variance of the new point. It starts at the jitter of {@link #choleskyDecomposition(int)} and grows tenfold per attempt, since the rounding
+	 * error of l^T * l grows with the condition of K. If that does not help either, an exception is thrown and L and the model are left unchanged.
+	 */
+	private void appendToFactor(double[] kStar, double kappa)
+	{
+		double jitter = this.jitter;
+		for(int attempt = 0; attempt < 10; attempt++)
+		{
+			try
+			{
+				// The row is overwritten by the append, so every attempt starts from a copy.
+				this.L.append(kStar.clone(), kappa);
+				return;
+			}
+			catch(IllegalArgumentException e)
+			{
+				kappa += jitter;
+				jitter *= 10;
+			}
+		}
+		throw new IllegalArgumentException("Adding Jitter did not work.");
+	}
+
+	/**
+	 * Appends the rows of several new points to L, with jitter on the variances of the new points if needed, see {@link #appendToFactor(double[], double)}.
+	 */
+	private void appendToFactor(double[][] cross, double[][] k22)
+	{
+		int m = cross.length;
+		double jitter = this.jitter;
+		for(int attempt = 0; attempt < 10; attempt++)
+		{
+			double[][] rows = new double[m][];
+			for(int r = 0; r < m; r++)
+				rows[r] = cross[r].clone();
+			try
+			{
+				this.L.append(rows, k22);
+				return;
+			}
+			catch(IllegalArgumentException e)
+			{
+				for(int r = 0; r < m; r++)
+					k22[r][r] += jitter;
+				jitter *= 10;
+			}
+		}
+		throw new IllegalArgumentException("Adding Jitter did not work.");
+	}
+
+	/**
+	 * Removes points by the eviction policy until the window size is reached. Each point is taken out of the Cholesky factor by a downdate instead of
+	 * refactorizing.
+	 */
+	private void evict()
+	{
+		if(this.windowSize <= 0 || this.L.size() <= this.windowSize)
+			return;
+		this.trackedCandidates.clear();
+		while(this.L.size() > this.windowSize)
+		{
+			int index = this.selectEviction();
+			this.L.remove(index);
+			if(this.crossKernelCache != null)
+				this.crossKernelCache.removeColumn(index);
+			this.instances.remove(index);
+			this.removeInsertionIndex(index);
+			this.kernel.instanceRemoved(this.instances, index);
+			// The least informative point depends on alpha, the other policies only need it at the end.
+			if(this.evictionPolicy == EVICT_LEAST_INFORMATIVE || this.L.size() <= this.windowSize)
+				this.estimateAlpha();
+		}
+	}
+
+	private int selectEviction()
+	{
+		int n = this.instances.numInstances();
+		int selected = 0;
+		for(int i = 1; i < n; i++)
+		{
+			switch(this.evictionPolicy)
+			{
+				case EVICT_OLDEST:
+					if(this.insertionIndices[i] < this.insertionIndices[selected])
+						selected = i;
+					break;
+				case EVICT_LOWEST_TARGET:
+					if(this.instances.instance(i).target() < this.instances.instance(selected).target())
+						selected = i;
+					break;
+				case EVICT_LEAST_INFORMATIVE:
+					if(Math.abs(this.alpha[i]) < Math.abs(this.alpha[selected]))
+						selected = i;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown eviction policy: " + this.evictionPolicy);
+			}
+		}
+		return selected;
+	}
+
+	private void addInsertionIndices(int m)
+	{
+		int n = this.instances.numInstances();
+		if(n > this.insertionIndices.length)
+			this.insertionIndices = Arrays.copyOf(this.insertionIndices, Math.max(n, 2 * this.insertionIndices.length));
+		for(int i = n - m; i < n; i++)
+			this.insertionIndices[i] = this.numInserted++;
+	}
+
+	private void removeInsertionIndex(int index)
+	{
+		System.arraycopy(this.insertionIndices, index + 1, this.insertionIndices, index, this.instances.numInstances() - index);
 	}
 
-	private ArrayRealVector getKStar(Instance instance)
+	/**
+	 * Number of points added before the point in row i since the last call of {@link #train(Instances)}, i.e. its row index if nothing was evicted.
+	 */
+	public int getInsertionIndex(int i)
+	{
+		return this.insertionIndices[i];
+	}
+
+	private double[] getKStar(Instance instance)
 	{
 		double[] kStarArray = new double[this.instances.numInstances()];
 		for(int i = 0; i < this.instances.numInstances(); i++)
 		{
 			kStarArray[i] = this.kernelFunction(this.instances.instance(i), instance);
 		}
-		return new ArrayRealVector(kStarArray, false);
+		return kStarArray;
 	}
 
 	private double kernelFunction(Instance inst1, Instance inst2)
@@ -188,6 +660,109 @@ public class GaussianProcessRegression implements Regression
 		this.learnKernelParameters = learnKernelParameters;
 	}
 
+	public KernelOptimizer getKernelOptimizer()
+	{
+		return this.kernelOptimizer;
+	}
+
+	/**
+	 * Optimizer used by {@link #train(Instances)} if the kernel parameters are learned. Default is {@link AdaGrad}.
+	 */
+	public void setKernelOptimizer(KernelOptimizer kernelOptimizer)
+	{
+		this.kernelOptimizer = kernelOptimizer;
+	}
+
+	public int getCholeskyBlockSize()
+	{
+		return this.choleskyBlockSize;
+	}
+
+	/**
+	 * Number of columns per panel of the blocked Cholesky decomposition, see {@link PackedMatrices#cholesky(double[], int, int, ForkJoinPool)}. The factor
+	 * does not depend on it.
+	 */
+	public void setCholeskyBlockSize(int choleskyBlockSize)
+	{
+		this.choleskyBlockSize = choleskyBlockSize;
+	}
+
+	public ForkJoinPool getPool()
+	{
+		return this.pool;
+	}
+
+	/**
+	 * Pool which runs the Cholesky decompositions of {@link #train(Instances)}, the kernel optimizer and the jitter retries in parallel. The factor does not
+	 * depend on the number of threads. null (default) decomposes in the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	public int getWindowSize()
+	{
+		return this.windowSize;
+	}
+
+	/**
+	 * Caps the number of training points. Whenever there are more, points are removed by the eviction policy. The removed points are also removed from the
+	 * training instances passed to {@link #train(Instances)}. 0 means unbounded.
+	 */
+	public void setWindowSize(int windowSize)
+	{
+		this.windowSize = windowSize;
+	}
+
+	public int getEvictionPolicy()
+	{
+		return this.evictionPolicy;
+	}
+
+	/**
+	 * One of {@link #EVICT_OLDEST}, {@link #EVICT_LOWEST_TARGET} and {@link #EVICT_LEAST_INFORMATIVE}.
+	 */
+	public void setEvictionPolicy(int evictionPolicy)
+	{
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	public boolean isTrackCandidates()
+	{
+		return this.trackCandidates;
+	}
+
+	/**
+	 * In candidate-tracking mode {@link #predictWithUncertainty(List, double[], double[])} keeps L^-1 * k* of every candidate it has seen. Online updates
+	 * extend these solves by the new rows only and the mean is their product with L^-1 * y, so the candidates of a fixed pool cost O(n) per update and
+	 * prediction. Training and evictions change the whole factor and drop the solves, they are recomputed on the next prediction. Candidates which are not
+	 * part of a prediction are no longer tracked.
+	 */
+	public void setTrackCandidates(boolean trackCandidates)
+	{
+		this.trackCandidates = trackCandidates;
+		this.trackedCandidates.clear();
+	}
+
+	public boolean isCrossKernelCached()
+	{
+		return this.crossKernelCache != null;
+	}
+
+	/**
+	 * Keeps the covariances between the candidates of {@link #predictWithUncertainty(List, double[], double[])} and the training points. Appended points only
+	 * add a column per candidate and evicted points remove one, so with a fixed pool of candidates the kernel is evaluated O(candidates) times per update.
+	 * The cache is dropped whenever the kernel parameters are learned.
+	 *
+	 * @param singlePrecision
+	 *            Store the covariances as float, which halves the memory but rounds the predictions.
+	 */
+	public void setCrossKernelCache(boolean enabled, boolean singlePrecision)
+	{
+		this.crossKernelCache = enabled ? new CrossKernelCache(singlePrecision) : null;
+	}
+
 	public int getEpochs()
 	{
 		return this.epochs;
@@ -211,9 +786,12 @@ public class GaussianProcessRegression implements Regression
 
 	public double[] getAlpha()
 	{
-		return this.alpha.toArray();
+		return this.alpha.clone();
 	}
 	
+	/**
+	 * Replaces the targets of all training points and refreshes alpha, see {@link #refreshTargets()}.
+	 */
 	public void updateLabels(double[] labels) {
 		if (this.instances.numInstances() != labels.length) {
 			System.err.println("Labels cannot be updated as the number of instances and labels differs");
@@ -224,9 +802,19 @@ public class GaussianProcessRegression implements Regression
 			instance.setTarget(labels[i]);
 			i++;
 		}
-		
-		
-		
+		this.refreshTargets();
+	}
+
+	/**
+	 * Recomputes alpha after targets of the training instances were changed directly. The features and therefore the factor stay the same, L^-1 * y is
+	 * recomputed from the first changed target on, see {@link #updateAlpha(int)}. Not needed before {@link #onlineUpdate(Instance)}, which refreshes the
+	 * targets as well.
+	 */
+	public void refreshTargets()
+	{
+		if(this.instances == null)
+			throw new IllegalArgumentException("Model was not trained before so its targets cannot be refreshed");
+		this.updateAlpha(this.L.size());
 	}
 	
 }
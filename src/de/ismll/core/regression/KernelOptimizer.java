@@ -0,0 +1,13 @@
+package de.ismll.core.regression;
+
+/**
+ * Learns the kernel parameters of a Gaussian process on its training instances. Implementations must not keep state between calls, one object can be shared
+ * by several Gaussian processes.
+ */
+public interface KernelOptimizer
+{
+	/**
+	 * Optimizes the parameters of the kernel of gp. When it returns, the kernel holds the final parameters. gp is factorized again afterwards.
+	 */
+	public void optimize(GaussianProcessRegression gp);
+}
@@ -0,0 +1,244 @@
+package de.ismll.core.regression;
+
+import de.ismll.core.Logger;
+import de.ismll.kernel.Kernel;
+
+/**
+ * Limited-memory BFGS on the negative log marginal likelihood. The kernel parameters are optimized in log space, so they stay positive and parameters of
+ * different scale are treated alike. Every evaluation is one factorization, the gradient is the analytic one of
+ * {@link Kernel#computeGradient(de.ismll.core.Instances, de.ismll.core.linalg.CholeskyFactor, double[])}.
+ * <p>
+ * The optimization stops if the largest gradient entry is below the gradient tolerance, if the relative decrease of the objective is below the function
+ * tolerance or after the maximum number of iterations. With warm start the current kernel parameters are the starting point, e.g. those of the previous
+ * training, otherwise the kernel is reset first.
+ */
+public class LBFGS implements KernelOptimizer
+{
+	private int memory = 10;
+
+	private int maxIterations = 50;
+
+	private double gradientTolerance = 1E-4;
+
+	private double functionTolerance = 1E-9;
+
+	private boolean warmStart = false;
+
+	/**
+	 * Sufficient decrease constant of the backtracking line search.
+	 */
+	private static final double ARMIJO = 1E-4;
+
+	private static final int MAX_LINE_SEARCH_STEPS = 30;
+
+	@Override
+	public void optimize(GaussianProcessRegression gp)
+	{
+		Kernel kernel = gp.getKernel();
+		if(!this.warmStart)
+			kernel.resetParameters();
+		double[] parameters = kernel.getParameters();
+		int dimension = parameters.length;
+		double[] x = new double[dimension];
+		for(int i = 0; i < dimension; i++)
+			x[i] = Math.log(Math.max(Math.abs(parameters[i]), 1E-10));
+
+		double[] g = new double[dimension];
+		double f = evaluate(gp, x, g);
+		if(Double.isInfinite(f))
+		{
+			Logger.warning("L-BFGS: the kernel matrix cannot be factorized for the initial parameters.");
+			kernel.setParameters(parameters);
+			return;
+		}
+
+		double[][] s = new double[this.memory][], y = new double[this.memory][];
+		double[] rho = new double[this.memory], a = new double[this.memory];
+		int numPairs = 0, newest = -1;
+		double[] direction = new double[dimension], xNew = new double[dimension], gNew = new double[dimension];
+		int iter = 0;
+		for(; iter < this.maxIterations && maxAbs(g) >= this.gradientTolerance; iter++)
+		{
+			// Two-loop recursion: direction = -H * g
+			for(int i = 0; i < dimension; i++)
+				direction[i] = -g[i];
+			for(int k = 0; k < numPairs; k++)
+			{
+				int m = (newest - k + this.memory) % this.memory;
+				a[m] = rho[m] * dot(s[m], direction);
+				for(int i = 0; i < dimension; i++)
+					direction[i] -= a[m] * y[m][i];
+			}
+			if(numPairs > 0)
+			{
+				double scale = dot(s[newest], y[newest]) / dot(y[newest], y[newest]);
+				for(int i = 0; i < dimension; i++)
+					direction[i] *= scale;
+			}
+			for(int k = numPairs - 1; k >= 0; k--)
+			{
+				int m = (newest - k + this.memory) % this.memory;
+				double b = rho[m] * dot(y[m], direction);
+				for(int i = 0; i < dimension; i++)
+					direction[i] += (a[m] - b) * s[m][i];
+			}
+			double slope = dot(g, direction);
+			if(!(slope < 0))
+			{
+				// Not a descent direction, restart from steepest descent.
+				numPairs = 0;
+				for(int i = 0; i < dimension; i++)
+					direction[i] = -g[i];
+				slope = -dot(g, g);
+			}
+
+			// Backtracking line search, the first step is scaled since there is no curvature information yet.
+			double step = numPairs == 0 ? Math.min(1, 1 / Math.sqrt(-slope)) : 1;
+			double fNew = Double.POSITIVE_INFINITY;
+			boolean accepted = false;
+			for(int k = 0; k < MAX_LINE_SEARCH_STEPS && !accepted; k++)
+			{
+				for(int i = 0; i < dimension; i++)
+					xNew[i] = x[i] + step * direction[i];
+				fNew = evaluate(gp, xNew, gNew);
+				accepted = fNew <= f + ARMIJO * step * slope;
+				if(!accepted)
+					step /= 2;
+			}
+			if(!accepted)
+				break;
+
+			double sy = 0;
+			for(int i = 0; i < dimension; i++)
+				sy += (xNew[i] - x[i]) * (gNew[i] - g[i]);
+			// Only pairs with positive curvature keep the approximation positive definite.
+			if(sy > 1E-10)
+			{
+				newest = (newest + 1) % this.memory;
+				if(s[newest] == null)
+				{
+					s[newest] = new double[dimension];
+					y[newest] = new double[dimension];
+				}
+				for(int i = 0; i < dimension; i++)
+				{
+					s[newest][i] = xNew[i] - x[i];
+					y[newest][i] = gNew[i] - g[i];
+				}
+				rho[newest] = 1 / sy;
+				numPairs = Math.min(numPairs + 1, this.memory);
+			}
+
+			double decrease = f - fNew;
+			System.arraycopy(xNew, 0, x, 0, dimension);
+			System.arraycopy(gNew, 0, g, 0, dimension);
+			f = fNew;
+			if(decrease <= this.functionTolerance * Math.max(1, Math.abs(f)))
+			{
+				iter++;
+				break;
+			}
+		}
+
+		double[] optimum = new double[dimension];
+		for(int i = 0; i < dimension; i++)
+			optimum[i] = Math.exp(x[i]);
+		kernel.setParameters(optimum);
+		Logger.fine("L-BFGS stopped after " + iter + " iterations, negative log-likelihood: " + f);
+	}
+
+	/**
+	 * Sets the kernel parameters exp(x), factorizes and returns the negative log-likelihood. Its gradient with respect to x is written to g.
+	 */
+	private static double evaluate(GaussianProcessRegression gp, double[] x, double[] g)
+	{
+		double[] parameters = new double[x.length];
+		for(int i = 0; i < x.length; i++)
+			parameters[i] = Math.exp(x[i]);
+		gp.getKernel().setParameters(parameters);
+		try
+		{
+			gp.factorize();
+		}
+		catch(IllegalArgumentException e)
+		{
+			return Double.POSITIVE_INFINITY;
+		}
+		double f = -gp.getLogLikelihood();
+		if(Double.isNaN(f))
+			return Double.POSITIVE_INFINITY;
+		double[] gradient = gp.getLogLikelihoodGradient();
+		for(int i = 0; i < x.length; i++)
+			g[i] = -gradient[i] * parameters[i];
+		return f;
+	}
+
+	private static double dot(double[] a, double[] b)
+	{
+		double sum = 0;
+		for(int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+
+	private static double maxAbs(double[] a)
+	{
+		double max = 0;
+		for(double d : a)
+			max = Math.max(max, Math.abs(d));
+		return max;
+	}
+
+	public int getMemory()
+	{
+		return this.memory;
+	}
+
+	public void setMemory(int memory)
+	{
+		this.memory = memory;
+	}
+
+	public int getMaxIterations()
+	{
+		return this.maxIterations;
+	}
+
+	public void setMaxIterations(int maxIterations)
+	{
+		this.maxIterations = maxIterations;
+	}
+
+	public double getGradientTolerance()
+	{
+		return this.gradientTolerance;
+	}
+
+	public void setGradientTolerance(double gradientTolerance)
+	{
+		this.gradientTolerance = gradientTolerance;
+	}
+
+	public double getFunctionTolerance()
+	{
+		return this.functionTolerance;
+	}
+
+	public void setFunctionTolerance(double functionTolerance)
+	{
+		this.functionTolerance = functionTolerance;
+	}
+
+	public boolean isWarmStart()
+	{
+		return this.warmStart;
+	}
+
+	/**
+	 * If true, the optimization starts from the current kernel parameters instead of resetting them.
+	 */
+	public void setWarmStart(boolean warmStart)
+	{
+		this.warmStart = warmStart;
+	}
+}
@@ -1,22 +1,31 @@
 package de.ismll.hylap;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.math3.stat.descriptive.moment.Mean;
 import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 
+import de.ismll.core.InstanceUtils;
 import de.ismll.core.Instances;
 import de.ismll.core.Logger;
 import de.ismll.core.Random;
+import de.ismll.core.regression.AdaGrad;
+import de.ismll.core.regression.GaussianProcessRegression;
+import de.ismll.core.regression.KernelOptimizer;
+import de.ismll.core.regression.LBFGS;
 import de.ismll.hylap.acquisitionFunction.AcquisitionFunction;
 import de.ismll.hylap.acquisitionFunction.ExpectedImprovement;
 import de.ismll.hylap.surrogateModel.ProductOfGPExperts;
 import de.ismll.hylap.surrogateModel.SurrogateModel;
+import de.ismll.kernel.DistanceTable;
 
 public class SMBOMain
 {
@@ -30,7 +39,20 @@ public class SMBOMain
 		System.out.println("-f\tPath to the folder where your datasets are stored.\n" + "-dataset\tName of the dataset to evaluate.\n"
 				+ "-tries\tNumber of steps for the SMBO algorithm.\n" + "-iter\tNumber of iterations, results are averaged.\n"
 				+ "-output\tThe location where the results shall be saved.\n" + "-seed\tRandom seed (Default: 0, Random: r)\n"
-				+ "-s\tThe surrogate model, \"pogpe\" or \"sgpe\". \n");
+				+ "-s\tThe surrogate model, \"pogpe\" or \"sgpe\". \n"
+				+ "-threads\tNumber of threads used for loading the data sets (Default: number of processors).\n"
+				+ "-offheap\tKeep the training data of the experts in off-heap memory, \"true\" or \"false\" (Default: false).\n"
+				+ "-tables\tLook up kernel distances in tables of configurations and data sets, \"true\" or \"false\" (Default: false).\n"
+				+ "-optimizer\tOptimizer of the kernel parameters, \"adagrad\" or \"lbfgs\" (Default: adagrad).\n"
+				+ "-window\tMaximum number of points of every GP, 0 for unbounded (Default: 0).\n"
+				+ "-eviction\tPoint removed from a full window, \"oldest\", \"lowest\" or \"informative\" (Default: oldest).\n"
+				+ "-track\tUpdate the predictions of the candidates incrementally, \"true\" or \"false\" (Default: false).\n"
+				+ "-crosskernel\tCache the covariances between candidates and training points, \"off\", \"double\" or \"float\" (Default: off).\n"
+				+ "-gpthreads\tNumber of threads used by the Gaussian processes, 1 for none (Default: 1).\n"
+				+ "-gate\tTrain and combine only the experts of the most similar data sets by their meta-features, 0 for all (Default: 0).\n"
+				+ "-drop\tDrop experts contributing less than this fraction of the average precision mass, 0 for none (Default: 0).\n"
+				+ "-droploglik\tDrop experts whose mean log-likelihood of the target points is this far below the best, 0 for none (Default: 0).\n"
+				+ "-dropmin\tMinimum number of experts kept by dropping (Default: 1).\n");
 		System.exit(0);
 	}
 
@@ -47,6 +69,8 @@ public class SMBOMain
 		String datasetName = argsMap.get("-dataset");
 		String dataFolder = argsMap.get("-f");
 		File[] files = new File(dataFolder).listFiles();
+		// Fixed order of the experts, independent of the file system.
+		Arrays.sort(files);
 		int maxTries = Integer.parseInt(argsMap.get("-tries"));
 		int numIters = Integer.parseInt(argsMap.get("-iter"));
 
@@ -72,6 +96,53 @@ public class SMBOMain
 			HyperparameterCombination.HYPERPARAMETER_INDICATOR_RANGE_MAX = Integer.parseInt(argsMap.get("-hpIndicatorRange"));
 
 		File outputFile = argsMap.get("-output") == null ? null : new File(argsMap.get("-output"));
+
+		int numThreads = argsMap.containsKey("-threads") ? Integer.parseInt(argsMap.get("-threads")) : Runtime.getRuntime().availableProcessors();
+		boolean offHeap = argsMap.containsKey("-offheap") && Boolean.parseBoolean(argsMap.get("-offheap"));
+		boolean tables = argsMap.containsKey("-tables") && Boolean.parseBoolean(argsMap.get("-tables"));
+		int gpThreads = argsMap.containsKey("-gpthreads") ? Integer.parseInt(argsMap.get("-gpthreads")) : 1;
+		int numGatedExperts = argsMap.containsKey("-gate") ? Integer.parseInt(argsMap.get("-gate")) : 0;
+		double minContribution = argsMap.containsKey("-drop") ? Double.parseDouble(argsMap.get("-drop")) : 0;
+		double maxLogLikelihoodGap = argsMap.containsKey("-droploglik") ? Double.parseDouble(argsMap.get("-droploglik")) : 0;
+		int minExperts = argsMap.containsKey("-dropmin") ? Integer.parseInt(argsMap.get("-dropmin")) : 1;
+		// Shared by all iterations, the factorizations do not depend on the number of threads.
+		ForkJoinPool pool = gpThreads > 1 ? new ForkJoinPool(gpThreads) : null;
+		boolean trackCandidates = argsMap.containsKey("-track") && Boolean.parseBoolean(argsMap.get("-track"));
+		String crossKernel = argsMap.containsKey("-crosskernel") ? argsMap.get("-crosskernel") : "off";
+		if(!crossKernel.equals("off") && !crossKernel.equals("double") && !crossKernel.equals("float"))
+		{
+			Logger.severe("Unknown cross-kernel cache \"" + crossKernel + "\"");
+			System.exit(1);
+		}
+		int windowSize = argsMap.containsKey("-window") ? Integer.parseInt(argsMap.get("-window")) : 0;
+		int evictionPolicy = GaussianProcessRegression.EVICT_OLDEST;
+		if(argsMap.containsKey("-eviction"))
+		{
+			if(argsMap.get("-eviction").equals("oldest"))
+				evictionPolicy = GaussianProcessRegression.EVICT_OLDEST;
+			else if(argsMap.get("-eviction").equals("lowest"))
+				evictionPolicy = GaussianProcessRegression.EVICT_LOWEST_TARGET;
+			else if(argsMap.get("-eviction").equals("informative"))
+				evictionPolicy = GaussianProcessRegression.EVICT_LEAST_INFORMATIVE;
+			else
+			{
+				Logger.severe("Unknown eviction policy \"" + argsMap.get("-eviction") + "\"");
+				System.exit(1);
+			}
+		}
+		KernelOptimizer kernelOptimizer = null;
+		if(argsMap.containsKey("-optimizer"))
+		{
+			if(argsMap.get("-optimizer").equals("lbfgs"))
+				kernelOptimizer = new LBFGS();
+			else if(argsMap.get("-optimizer").equals("adagrad"))
+				kernelOptimizer = new AdaGrad();
+			else
+			{
+				Logger.severe("Unknown kernel optimizer \"" + argsMap.get("-optimizer") + "\"");
+				System.exit(1);
+			}
+		}
 		
 		int algorithmOffset = 0;
 
@@ -85,16 +156,23 @@ public class SMBOMain
 				testId = i;
 		}
 
+		Instances[] data = InstanceUtils.loadInstances(files, numThreads);
 		int l = 0;
 		for(int j = 0; j < files.length; j++)
 		{
 			if(j != testId)
 			{
-				train[l++] = new Instances(files[j]);
+				// The meta-features are constant within a data set. The experts copy their data into contiguous or off-heap storage, which keeps them only
+				// once per data set. The test data is only scored, so it is left as loaded.
+				train[l++] = InstanceUtils.factorize(data[j], HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX);
 			}
 		}
 
-		Instances testData = new Instances(files[testId]);
+		Instances testData = data[testId];
+
+		// Configurations and meta-features do not change between iterations, so the table is shared by all of them. It holds no instances, every kernel
+		// caches the ids of its instances itself.
+		DistanceTable distanceTable = tables ? new DistanceTable() : null;
 
 		Logger.info("Starting the SMBO framework.");
 		double[][] acc = new double[maxTries][numIters];
@@ -112,18 +190,31 @@ public class SMBOMain
 				s = null;
 			else if(argsMap.get("-s").equals("pogpe"))
 			{
-				s = new ProductOfGPExperts(train, ProductOfGPExperts.ALL_EXPERTS, true, false, false);
+				s = new ProductOfGPExperts(train, ProductOfGPExperts.ALL_EXPERTS, true, false, false, offHeap, distanceTable, kernelOptimizer, pool);
 			}
 			else if(argsMap.get("-s").equals("sgpe"))
 			{
-				s = new ProductOfGPExperts(train, ProductOfGPExperts.SINGLE_EXPERT, true, false, false);
+				s = new ProductOfGPExperts(train, ProductOfGPExperts.SINGLE_EXPERT, true, false, false, offHeap, distanceTable, kernelOptimizer, pool);
 			}
 			else
 			{
 				Logger.severe("Unknown surrogate function \"" + argsMap.get("-s") + "\"");
 				System.exit(1);
 			}
+			if(windowSize > 0 && s instanceof ProductOfGPExperts)
+				((ProductOfGPExperts) s).setWindow(windowSize, evictionPolicy);
+			if(trackCandidates && s instanceof ProductOfGPExperts)
+				((ProductOfGPExperts) s).setTrackCandidates(true);
+			if(!crossKernel.equals("off") && s instanceof ProductOfGPExperts)
+				((ProductOfGPExperts) s).setCrossKernelCache(true, crossKernel.equals("float"));
+			if(numGatedExperts > 0 && s instanceof ProductOfGPExperts)
+				((ProductOfGPExperts) s).setGating(numGatedExperts);
+			if((minContribution > 0 || maxLogLikelihoodGap > 0) && s instanceof ProductOfGPExperts)
+				((ProductOfGPExperts) s).setExpertDropping(minContribution, maxLogLikelihoodGap, minExperts);
 
+			// The experts, only the gated ones with -gate, are trained before the timing starts.
+			if(s instanceof ProductOfGPExperts && testData.numInstances() > 0)
+				((ProductOfGPExperts) s).trainExperts(testData.instance(0));
 			long start = System.nanoTime();
 			SMBO smbo = new SMBO(testData, a, s, algorithmOffset);
 			for(int j = 0; j < maxTries; j++)
@@ -144,6 +235,8 @@ public class SMBOMain
 				}
 				algorithmSelection[iter] = smbo.getAlgorithmSelection();
 			}
+			if(s instanceof Closeable)
+				((Closeable) s).close();
 
 			StandardDeviation sd = new StandardDeviation();
 			Mean mean = new Mean();
@@ -25,10 +25,13 @@ public class ExpectedImprovement implements AcquisitionFunction
 		for(int i = 0; i < h.numInstances(); i++)
 			yMax = Math.max(h.instance(i).target(), yMax);
 
-		for(Instance c : candidates)
+		double[] means = new double[candidates.size()];
+		double[] sds = new double[candidates.size()];
+		surrogateModel.predict(candidates, means, sds);
+		for(int i = 0; i < candidates.size(); i++)
 		{
-			double[] yHat = surrogateModel.predict(c);
-			double ei = this.getEI(yHat[0], yHat[1], yMax);
+			Instance c = candidates.get(i);
+			double ei = this.getEI(means[i], sds[i], yMax);
 
 			if(bestEI < ei)
 			{
@@ -0,0 +1,37 @@
+package de.ismll.hylap.metadataset;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.ismll.core.Instances;
+
+/**
+ * Converts all meta-data sets of a folder from libsvm text into the binary format of {@link de.ismll.core.BinaryFormat}. The converted files keep their names
+ * so the output folder can be passed to SMBOMain with -f directly.
+ */
+public class ConvertToBinary
+{
+	public static void main(String[] args)
+	{
+		String inputFolder = args.length > 0 ? args[0] : "data/svm";
+		String outputFolder = args.length > 1 ? args[1] : "data/svm_binary";
+
+		File destFolder = new File(outputFolder);
+		destFolder.mkdirs();
+
+		for(File file : new File(inputFolder).listFiles())
+		{
+			if(!file.isFile())
+				continue;
+			try
+			{
+				System.out.println("Converting dataset: " + file.getName());
+				new Instances(file).saveToBinary(new File(destFolder, file.getName()));
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
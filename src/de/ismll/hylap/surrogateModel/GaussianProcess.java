@@ -1,5 +1,7 @@
 package de.ismll.hylap.surrogateModel;
 
+import java.util.List;
+
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
 import de.ismll.core.regression.GaussianProcessRegression;
@@ -25,6 +27,14 @@ public class GaussianProcess implements SurrogateModel, OnlineLearnable
 		return this.model.predictWithUncertainty(instance);
 	}
 
+	@Override
+	public void predict(List<Instance> instances, double[] means, double[] sds)
+	{
+		this.model.predictWithUncertainty(instances, means, sds);
+		for(int i = 0; i < instances.size(); i++)
+			sds[i] = Math.sqrt(sds[i]);
+	}
+
 	@Override
 	public void onlineUpdate(Instance instance)
 	{
@@ -1,13 +1,32 @@
 package de.ismll.hylap.surrogateModel;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import de.ismll.core.ContiguousInstances;
 import de.ismll.core.DenseInstance;
+import de.ismll.core.FactorizedInstance;
 import de.ismll.core.Instance;
 import de.ismll.core.InstanceUtils;
 import de.ismll.core.Instances;
+import de.ismll.core.Logger;
+import de.ismll.core.OffHeapInstances;
 import de.ismll.core.SparseInstance;
 import de.ismll.core.regression.GaussianProcessRegression;
+import de.ismll.core.regression.KernelOptimizer;
+import de.ismll.hylap.HyperparameterCombination;
+import de.ismll.kernel.DistanceTable;
+import de.ismll.kernel.Kernel;
+import de.ismll.kernel.SEKernel;
 
-public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
+public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable, Closeable
 {
 
 	private boolean isBCM = false;
@@ -29,7 +48,16 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 	public int numberOfExperts;
 
 	public Instances targetInstancesSeen;
-	public Instances targetInstancesScaled;
+
+	/**
+	 * Targets of the target instances seen, normalized by the current mean and standard deviation.
+	 */
+	private double[] scaledTargets = new double[16];
+
+	/**
+	 * Running mean and sum of squared deviations of the targets seen (Welford), so a new target does not rescan the earlier ones.
+	 */
+	private double runningMean, runningSquaredDeviations;
 
 	int mode = 1;
 	boolean firstInstance = true;
@@ -38,15 +66,122 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 	GaussianProcessRegression targetGP;
 	public double targetBeta = 0.5;
 
+	/**
+	 * Trains and updates the experts in parallel, null for the calling thread only.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Table of squared distances of all kernels, null if they compute them.
+	 */
+	private DistanceTable distanceTable;
+
+	/**
+	 * Experts which are combined and updated, in ascending order. All experts unless gating selected some of them, see {@link #setGating(int)}.
+	 */
+	private int[] activeExperts;
+
+	/**
+	 * Number of experts kept by the gating, 0 for all.
+	 */
+	private int numGatedExperts = 0;
+
+	/**
+	 * True once the gating has selected its experts.
+	 */
+	private boolean gated = false;
+
+	/**
+	 * True for the experts which are trained, see {@link #trainExperts(Instance)}.
+	 */
+	private boolean[] trained;
+
+	/**
+	 * Window of the experts, see {@link #setWindow(int, int)}. It is set on every expert once it is trained.
+	 */
+	private int windowSize = 0;
+
+	private int evictionPolicy = GaussianProcessRegression.EVICT_OLDEST;
+
+	/**
+	 * Thresholds of the expert dropping, see {@link #setExpertDropping(double, double, int)}. 0 disables a criterion.
+	 */
+	private double minContribution = 0, maxLogLikelihoodGap = 0;
+
+	private int minExperts = 1;
+
+	/**
+	 * Share of every expert in the precision mass of the last batch prediction, relative to the average active expert.
+	 */
+	private double[] contributions;
+
+	/**
+	 * Sum of the predictive log-likelihoods of the target points seen, per expert.
+	 */
+	private double[] logLikelihoods;
+
+	private int numScoredTargets = 0;
+
+	/**
+	 * Sums of the experts per candidate, only used while the experts are frozen, see {@link #isExpertCacheUsed()}. Candidates are identified by reference,
+	 * the row of a candidate holds its precision weighted mean, its sum of precisions and its sum of betas, followed by the shares of the experts if
+	 * contributions are tracked.
+	 */
+	private final IdentityHashMap<Instance, Integer> cachedCandidates = new IdentityHashMap<Instance, Integer>();
+	private double[][] cachedExpertSums = new double[0][];
+
 	public ProductOfGPExperts(Instances[] trainData, int mode, boolean normalizeInstances, boolean isBCM, boolean useDifferentialEntropyBetas)
+	{
+		this(trainData, mode, normalizeInstances, isBCM, useDifferentialEntropyBetas, false);
+	}
+
+	/**
+	 * @param offHeap
+	 *            If true, the training data of the experts is kept in {@link OffHeapInstances}. Call {@link #close()} to release it.
+	 */
+	public ProductOfGPExperts(Instances[] trainData, int mode, boolean normalizeInstances, boolean isBCM, boolean useDifferentialEntropyBetas, boolean offHeap)
+	{
+		this(trainData, mode, normalizeInstances, isBCM, useDifferentialEntropyBetas, offHeap, null, null);
+	}
+
+	/**
+	 * @param distanceTable
+	 *            If not null, all kernels look up squared distances in this table, see {@link #setDistanceTable(DistanceTable)}.
+	 * @param kernelOptimizer
+	 *            Learns the kernel parameters of the experts and the target GP, null keeps the default of {@link GaussianProcessRegression}.
+	 */
+	public ProductOfGPExperts(Instances[] trainData, int mode, boolean normalizeInstances, boolean isBCM, boolean useDifferentialEntropyBetas, boolean offHeap,
+			DistanceTable distanceTable, KernelOptimizer kernelOptimizer)
+	{
+		this(trainData, mode, normalizeInstances, isBCM, useDifferentialEntropyBetas, offHeap, distanceTable, kernelOptimizer, null);
+	}
+
+	/**
+	 * The experts are trained by the first prediction or update, or by {@link #trainExperts(Instance)}, so that the gating can leave experts untrained.
+	 *
+	 * @param pool
+	 *            Trains the experts and updates them in all experts mode in parallel, one task per expert. It also parallelizes the Cholesky decompositions of
+	 *            the experts and of the target GP, see {@link GaussianProcessRegression#setPool(ForkJoinPool)}. The experts are independent, so the model does
+	 *            not depend on the number of threads. null computes everything in the calling thread.
+	 */
+	public ProductOfGPExperts(Instances[] trainData, int mode, boolean normalizeInstances, boolean isBCM, boolean useDifferentialEntropyBetas, boolean offHeap,
+			DistanceTable distanceTable, KernelOptimizer kernelOptimizer, ForkJoinPool pool)
 	{
 		// Set booleans accordingly:
 		this.normalizeInstances = normalizeInstances;
 		this.isBCM = isBCM;
 		this.useDifferentialEntropyBetas = useDifferentialEntropyBetas;
 		this.mode = mode;
+		this.pool = pool;
 
+		this.distanceTable = distanceTable;
+		if(distanceTable != null && pool != null)
+			distanceTable.setShared(true);
 		this.targetGP = new GaussianProcessRegression();
+		this.targetGP.setPool(pool);
+		setDistanceTable(this.targetGP.getKernel(), distanceTable);
+		if(kernelOptimizer != null)
+			this.targetGP.setKernelOptimizer(kernelOptimizer);
 		this.numValues = trainData[0].numValues();
 		this.numberOfExperts = trainData.length;
 
@@ -71,14 +206,13 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 
 		// initialize objects of instances seen and scaled for scaling test points labels
 		this.targetInstancesSeen = new Instances(this.numValues);
-		this.targetInstancesScaled = new Instances(this.numValues);
 
 		// normalize train Data eventually and copy it to a new Instances object
 		this.numberOfTrainInstancesPerExpert = new int[trainData.length];
 		this.splitTrainData = new Instances[trainData.length];
 		for(int expert = 0; expert < this.splitTrainData.length; expert++)
 		{
-			this.splitTrainData[expert] = new Instances(numValues);
+			this.splitTrainData[expert] = offHeap ? new OffHeapInstances(numValues) : new ContiguousInstances(numValues);
 			this.numberOfTrainInstancesPerExpert[expert] = trainData[expert].numInstances();
 			if(this.normalizeInstances)
 			{
@@ -102,40 +236,86 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 		{
 			this.experts[expert] = new GaussianProcessRegression();
 			this.experts[expert].setLearnKernelParameters(true);
-			this.experts[expert].train(this.splitTrainData[expert]);
+			this.experts[expert].setPool(pool);
+			setDistanceTable(this.experts[expert].getKernel(), distanceTable);
+			if(kernelOptimizer != null)
+				this.experts[expert].setKernelOptimizer(kernelOptimizer);
 			this.betas[expert] = beta;
 		}
+		this.activeExperts = new int[this.numberOfExperts];
+		for(int expert = 0; expert < this.numberOfExperts; expert++)
+			this.activeExperts[expert] = expert;
+		this.trained = new boolean[this.numberOfExperts];
 
 	}
 
+	/**
+	 * Selects the experts of the gating for the data set of the instance, see {@link #setGating(int)}, and trains the active experts which are not trained
+	 * yet, in parallel if a pool was given. Experts left out by the gating are never trained. Predictions and updates call it themselves, calling it before a
+	 * run keeps the training out of the run.
+	 */
+	public void trainExperts(Instance instance)
+	{
+		this.selectExperts(instance);
+		boolean complete = true;
+		for(int expert : this.activeExperts)
+		{
+			if(!this.trained[expert])
+			{
+				this.registerDistances(this.splitTrainData[expert]);
+				complete = false;
+			}
+		}
+		if(complete)
+			return;
+		this.forEachExpert(new ExpertAction()
+		{
+			@Override
+			public void run(int expert)
+			{
+				if(trained[expert])
+					return;
+				experts[expert].train(splitTrainData[expert]);
+				experts[expert].setWindowSize(windowSize);
+				experts[expert].setEvictionPolicy(evictionPolicy);
+				trained[expert] = true;
+			}
+		});
+	}
+
 	@Override
 	public void onlineUpdate(Instance instance)
 	{
+		this.trainExperts(instance);
 		if(this.normalizeInstances)
 		{
-			// Add the new instance and normalize all seen instances:
+			// The experts hold the earlier target points scaled by the current statistics, so the new point is scored on that scale.
+			Instance scoredInstance = this.targetInstancesSeen.numInstances() == 0 ? null : this.getNormalizedInstance(this.targetMeanAndSd[0],
+					this.targetMeanAndSd[1], instance);
+			// Add the new instance and normalize all seen targets:
 			this.targetInstancesSeen.add(instance);
-			this.targetInstancesScaled = new Instances(this.numValues);
-			this.targetMeanAndSd = this.estimateMeanAndSd(this.targetInstancesSeen);
-			Instance scaledInstance = this.getNormalizedInstance(this.targetMeanAndSd[0], this.targetMeanAndSd[1], instance);
-			for(Instance targetInstance : this.targetInstancesSeen)
-			{
-				this.targetInstancesScaled.add(this.getNormalizedInstance(this.targetMeanAndSd[0], this.targetMeanAndSd[1], targetInstance));
-			}
+			this.targetMeanAndSd = this.addTarget(instance.target());
+			final Instance scaledInstance = this.getNormalizedInstance(this.targetMeanAndSd[0], this.targetMeanAndSd[1], instance);
+			int numSeen = this.targetInstancesSeen.numInstances();
+			if(numSeen > this.scaledTargets.length)
+				this.scaledTargets = Arrays.copyOf(this.scaledTargets, 2 * numSeen);
+			for(int i = 0; i < numSeen; i++)
+				this.scaledTargets[i] = this.normalize(this.targetInstancesSeen.instance(i).target(), this.targetMeanAndSd[0], this.targetMeanAndSd[1]);
+			this.registerDistances(Collections.singletonList(scaledInstance));
+			this.dropExperts(scoredInstance);
 
 			if(this.mode == ALL_EXPERTS)
 			{
 				// Change the labels of the new instances for each expert
-				for(int expert = 0; expert < this.experts.length; expert++)
+				this.forEachExpert(new ExpertAction()
 				{
-					int startIdx = this.numberOfTrainInstancesPerExpert[expert];
-					for(int instanceIdx = 0; instanceIdx < this.targetInstancesSeen.numInstances() - 1; instanceIdx++)
+					@Override
+					public void run(int expert)
 					{
-						this.experts[expert].instances.instance(startIdx + instanceIdx).setTarget(
-								this.targetInstancesScaled.instance(instanceIdx).target());
+						relabel(experts[expert], numberOfTrainInstancesPerExpert[expert]);
+						experts[expert].onlineUpdate(scaledInstance);
 					}
-					this.experts[expert].onlineUpdate(scaledInstance);
-				}
+				});
 			}
 			else if(this.mode == SINGLE_EXPERT)
 			{
@@ -161,11 +341,7 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 				else
 				// not the first instance, so update the instances in the target GP, and then online update with the scaled Instance
 				{
-					for(int instanceIdx = 0; instanceIdx < this.targetInstancesSeen.numInstances() - 1; instanceIdx++)
-					{
-						targetGP.instances.instance(instanceIdx).setTarget(this.targetInstancesScaled.instance(instanceIdx).target());
-						// System.out.println("buh");
-					}
+					this.relabel(this.targetGP, 0);
 					targetGP.onlineUpdate(scaledInstance);
 				}
 			}
@@ -177,13 +353,12 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 		}
 		else
 		{
+			this.registerDistances(Collections.singletonList(instance));
+			this.dropExperts(instance);
 			if(this.mode == ALL_EXPERTS)
 			{
 				// Simply update all experts with the new instance:
-				for(int expert = 0; expert < this.experts.length; expert++)
-				{
-					this.experts[expert].onlineUpdate(instance);
-				}
+				this.updateExperts(instance);
 			}
 			else if(this.mode == SINGLE_EXPERT)
 			{
@@ -201,10 +376,7 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 					targetGP.onlineUpdate(instance);
 				}
 				// Update all experts
-				for(int expert = 0; expert < this.experts.length; expert++)
-				{
-					this.experts[expert].onlineUpdate(instance);
-				}
+				this.updateExperts(instance);
 			}
 			else
 			{
@@ -214,6 +386,164 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 
 	}
 
+	/**
+	 * Adds the instance to every expert.
+	 */
+	private void updateExperts(final Instance instance)
+	{
+		this.forEachExpert(new ExpertAction()
+		{
+			@Override
+			public void run(int expert)
+			{
+				experts[expert].onlineUpdate(instance);
+			}
+		});
+	}
+
+	/**
+	 * Work on a single expert, see {@link #forEachExpert(ExpertAction)}.
+	 */
+	private interface ExpertAction
+	{
+		void run(int expert);
+	}
+
+	/**
+	 * Runs the action for every active expert, in parallel if a pool was given. The action must only touch the state of its own expert.
+	 */
+	private void forEachExpert(ExpertAction action)
+	{
+		if(this.pool == null)
+		{
+			for(int expert : this.activeExperts)
+				action.run(expert);
+		}
+		else
+			this.pool.invoke(new ExpertTask(action, this.activeExperts, 0, this.activeExperts.length));
+	}
+
+	/**
+	 * Runs an action for the experts experts[from], ..., experts[to - 1], split in halves down to single experts.
+	 */
+	private static class ExpertTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final ExpertAction action;
+
+		private final int[] experts;
+
+		private final int from, to;
+
+		ExpertTask(ExpertAction action, int[] experts, int from, int to)
+		{
+			this.action = action;
+			this.experts = experts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(this.to - this.from > 1)
+			{
+				int mid = (this.from + this.to) >>> 1;
+				invokeAll(new ExpertTask(this.action, this.experts, this.from, mid), new ExpertTask(this.action, this.experts, mid, this.to));
+			}
+			else if(this.to > this.from)
+				this.action.run(this.experts[this.from]);
+		}
+	}
+
+	/**
+	 * Sets the scaled targets of the target instances seen before the current one. Rows are matched by their insertion index, so points evicted by a sliding
+	 * window are skipped. Rows stay in insertion order, so the target instances are the last rows and the rows of the expert's own data are not visited.
+	 * Only the targets change, the following {@link GaussianProcessRegression#onlineUpdate(Instance)} recomputes alpha from the first relabeled row on.
+	 *
+	 * @param startIdx
+	 *            Insertion index of the first target instance in gp.
+	 */
+	private void relabel(GaussianProcessRegression gp, int startIdx)
+	{
+		int numSeen = this.targetInstancesSeen.numInstances() - 1;
+		for(int row = gp.instances.numInstances() - 1; row >= 0; row--)
+		{
+			int instanceIdx = gp.getInsertionIndex(row) - startIdx;
+			if(instanceIdx < 0)
+				break;
+			if(instanceIdx < numSeen)
+				gp.instances.instance(row).setTarget(this.scaledTargets[instanceIdx]);
+		}
+	}
+
+	/**
+	 * Adds a target to the running statistics of the targets seen (Welford's update). It rounds differently than the two passes of
+	 * {@link #estimateMeanAndSd(Instances)}, the mean agrees up to a relative error of about 1e-14 and the standard deviation up to about 1e-9. If all targets
+	 * seen are equal, the sum of squared deviations is exactly zero and the standard deviation falls back to 1, where the two passes may leave a rounding
+	 * residue instead.
+	 *
+	 * @return the mean and the standard deviation of all targets seen, with the conventions of {@link #estimateMeanAndSd(Instances)}.
+	 */
+	private double[] addTarget(double target)
+	{
+		int n = this.targetInstancesSeen.numInstances();
+		double delta = target - this.runningMean;
+		this.runningMean += delta / n;
+		this.runningSquaredDeviations += delta * (target - this.runningMean);
+		if(n == 1)
+			return new double[] { this.runningMean, 0 };
+		double sd = Math.sqrt(this.runningSquaredDeviations / (n - 1));
+		return new double[] { this.runningMean, sd == 0 ? 1 : sd };
+	}
+
+	/**
+	 * Caps the number of points of every expert and of the target GP, see {@link GaussianProcessRegression#setWindowSize(int)}. The experts are trained on
+	 * all of their data, their window applies from the next update on.
+	 *
+	 * @param evictionPolicy
+	 *            One of the eviction policies of {@link GaussianProcessRegression}.
+	 */
+	public void setWindow(int windowSize, int evictionPolicy)
+	{
+		this.windowSize = windowSize;
+		this.evictionPolicy = evictionPolicy;
+		for(int expert = 0; expert < this.numberOfExperts; expert++)
+		{
+			if(this.trained[expert])
+			{
+				this.experts[expert].setWindowSize(windowSize);
+				this.experts[expert].setEvictionPolicy(evictionPolicy);
+			}
+		}
+		this.targetGP.setWindowSize(windowSize);
+		this.targetGP.setEvictionPolicy(evictionPolicy);
+	}
+
+	/**
+	 * Switches the candidate-tracking mode of every expert and of the target GP, see {@link GaussianProcessRegression#setTrackCandidates(boolean)}. Useful
+	 * if a fixed pool of candidates is scored after every update, as done by SMBO.
+	 */
+	public void setTrackCandidates(boolean trackCandidates)
+	{
+		for(GaussianProcessRegression expert : this.experts)
+			expert.setTrackCandidates(trackCandidates);
+		this.targetGP.setTrackCandidates(trackCandidates);
+	}
+
+	/**
+	 * Lets every expert and the target GP cache the covariances between the candidates and their training points, see
+	 * {@link GaussianProcessRegression#setCrossKernelCache(boolean, boolean)}. In all experts mode the candidate pool and the data of every expert are fixed,
+	 * only the columns of newly observed target points are computed.
+	 */
+	public void setCrossKernelCache(boolean enabled, boolean singlePrecision)
+	{
+		for(GaussianProcessRegression expert : this.experts)
+			expert.setCrossKernelCache(enabled, singlePrecision);
+		this.targetGP.setCrossKernelCache(enabled, singlePrecision);
+	}
+
 	@Override
 	public void train(Instances instances)
 	{
@@ -229,9 +559,10 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 		double[] predicted = null;
 		double sumOfPrecisions = 0;
 		double sumOfBetas = 0;
+		this.trainExperts(instance);
 		if(this.mode == ALL_EXPERTS)
 		{
-			for(int expert = 0; expert < this.experts.length; expert++)
+			for(int expert : this.activeExperts)
 			{
 				predicted = this.experts[expert].predictWithUncertainty(instance);
 				mean = predicted[0];
@@ -266,7 +597,7 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 		}
 		else if(this.mode == SINGLE_EXPERT)
 		{
-			for(int expert = 0; expert < this.experts.length; expert++)
+			for(int expert : this.activeExperts)
 			{
 				predicted = this.experts[expert].predictWithUncertainty(instance);
 				mean = predicted[0];
@@ -314,6 +645,449 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 
 	}
 
+	/**
+	 * Batch version of {@link #predictWithUncertainty(Instance)}. Every expert predicts all instances with
+	 * {@link GaussianProcessRegression#predictWithUncertainty(List, double[], double[])} and the precision weighted sums are accumulated per instance, so the
+	 * results are those of calling {@link #predictWithUncertainty(Instance)} for the instances one after another.
+	 */
+	@Override
+	public void predict(List<Instance> instances, double[] means, double[] sds)
+	{
+		if(this.mode != ALL_EXPERTS && this.mode != SINGLE_EXPERT)
+		{
+			System.err.println("Unknown mode, as it is set to: " + mode);
+			return;
+		}
+		int m = instances.size();
+		if(m > 0)
+			this.trainExperts(instances.get(0));
+		double[] sumOfPrecisions = new double[m];
+		double[] sumOfBetas = new double[m];
+		double[][] shares = this.minContribution > 0 && m > 0 ? new double[this.numberOfExperts][] : null;
+		if(this.isExpertCacheUsed())
+			this.lookupExpertSums(instances, means, sumOfPrecisions, sumOfBetas, shares);
+		else
+			this.computeExpertSums(instances, means, sumOfPrecisions, sumOfBetas, shares);
+		if(shares != null)
+			this.updateContributions(shares, m);
+		if(this.mode == SINGLE_EXPERT)
+		{
+			// predictWithUncertainty(Instance) sets firstInstance, so the target GP only contributes to the first prediction after an update.
+			if(!this.firstInstance && m > 0)
+			{
+				double[] targetRet = this.targetGP.predictWithUncertainty(instances.get(0));
+				double targetPrecision = 1d / (targetRet[1] * targetRet[1]);
+				means[0] += this.targetBeta * targetPrecision * targetRet[0];
+				sumOfBetas[0] += this.targetBeta;
+				sumOfPrecisions[0] += this.targetBeta * targetPrecision;
+			}
+			this.firstInstance = true;
+		}
+		for(int i = 0; i < m; i++)
+		{
+			// rBCM corrects the sum of precisions by the prior precision, standard PoE uses it as it is
+			double divisor = this.isBCM ? sumOfPrecisions[i] + (1 - sumOfBetas[i]) : sumOfPrecisions[i];
+			means[i] /= divisor;
+			sds[i] = 1d / Math.sqrt(divisor);
+		}
+	}
+
+	/**
+	 * Sums beta * precision * mean, beta * precision and beta over all active experts for every instance. The experts predict all instances at the same time,
+	 * one task per expert if a pool was given. The sums are reduced afterwards in the order of the experts, so they do not depend on the number of threads.
+	 *
+	 * @param shares
+	 *            If not null, receives the share beta * precision / sum of precisions of every active expert for every instance.
+	 */
+	private void computeExpertSums(final List<Instance> instances, double[] weightedMeans, double[] sumOfPrecisions, double[] sumOfBetas, double[][] shares)
+	{
+		final int m = instances.size();
+		final double[][] expertMeans = new double[this.experts.length][];
+		final double[][] expertVariances = new double[this.experts.length][];
+		this.registerDistances(instances);
+		this.forEachExpert(new ExpertAction()
+		{
+			@Override
+			public void run(int expert)
+			{
+				expertMeans[expert] = new double[m];
+				expertVariances[expert] = new double[m];
+				experts[expert].predictWithUncertainty(instances, expertMeans[expert], expertVariances[expert]);
+			}
+		});
+		Arrays.fill(weightedMeans, 0, m, 0);
+		Arrays.fill(sumOfPrecisions, 0, m, 0);
+		Arrays.fill(sumOfBetas, 0, m, 0);
+		for(int expert : this.activeExperts)
+		{
+			double beta = this.betas[expert];
+			for(int i = 0; i < m; i++)
+			{
+				if(this.useDifferentialEntropyBetas)
+				{
+					beta = -0.5 * Math.log(expertVariances[expert][i]);
+				}
+				double precision = 1d / expertVariances[expert][i];
+				weightedMeans[i] += beta * precision * expertMeans[expert][i];
+				sumOfPrecisions[i] += beta * precision;
+				sumOfBetas[i] += beta;
+			}
+			// Like predictWithUncertainty(Instance), the differential entropy beta of the last instance is kept.
+			this.betas[expert] = beta;
+		}
+		if(shares != null)
+		{
+			for(int expert : this.activeExperts)
+			{
+				shares[expert] = new double[m];
+				for(int i = 0; i < m; i++)
+				{
+					double beta = this.useDifferentialEntropyBetas ? -0.5 * Math.log(expertVariances[expert][i]) : this.betas[expert];
+					shares[expert][i] = beta / expertVariances[expert][i] / sumOfPrecisions[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the contribution of every active expert to its mean share over the instances of a batch prediction, relative to the average active expert.
+	 */
+	private void updateContributions(double[][] shares, int m)
+	{
+		for(int expert : this.activeExperts)
+		{
+			double share = 0;
+			for(int i = 0; i < m; i++)
+				share += shares[expert][i];
+			this.contributions[expert] = share / m * this.activeExperts.length;
+		}
+	}
+
+	/**
+	 * Like {@link #computeExpertSums(List, double[], double[], double[], double[][])}, but the experts only predict instances which are not cached yet. The
+	 * shares of the experts are cached with the sums, so they cover all instances as well.
+	 */
+	private void lookupExpertSums(List<Instance> instances, double[] weightedMeans, double[] sumOfPrecisions, double[] sumOfBetas, double[][] shares)
+	{
+		ArrayList<Instance> missing = new ArrayList<Instance>();
+		for(Instance instance : instances)
+			if(!this.cachedCandidates.containsKey(instance))
+				missing.add(instance);
+		if(!missing.isEmpty())
+		{
+			int numMissing = missing.size();
+			double[][] sums = new double[3][numMissing];
+			double[][] missingShares = shares == null ? null : new double[this.numberOfExperts][];
+			this.computeExpertSums(missing, sums[0], sums[1], sums[2], missingShares);
+			int numCached = this.cachedCandidates.size();
+			if(numCached + numMissing > this.cachedExpertSums.length)
+				this.cachedExpertSums = Arrays.copyOf(this.cachedExpertSums, Math.max(numCached + numMissing, 2 * this.cachedExpertSums.length));
+			for(int i = 0; i < numMissing; i++)
+			{
+				this.cachedCandidates.put(missing.get(i), numCached + i);
+				double[] row = new double[missingShares == null ? 3 : 3 + this.numberOfExperts];
+				row[0] = sums[0][i];
+				row[1] = sums[1][i];
+				row[2] = sums[2][i];
+				if(missingShares != null)
+				{
+					for(int expert : this.activeExperts)
+						row[3 + expert] = missingShares[expert][i];
+				}
+				this.cachedExpertSums[numCached + i] = row;
+			}
+		}
+		if(shares != null)
+		{
+			for(int expert : this.activeExperts)
+				shares[expert] = new double[instances.size()];
+		}
+		for(int i = 0; i < instances.size(); i++)
+		{
+			double[] cached = this.cachedExpertSums[this.cachedCandidates.get(instances.get(i))];
+			weightedMeans[i] = cached[0];
+			sumOfPrecisions[i] = cached[1];
+			sumOfBetas[i] = cached[2];
+			if(shares != null)
+			{
+				for(int expert : this.activeExperts)
+					shares[expert][i] = cached[3 + expert];
+			}
+		}
+	}
+
+	/**
+	 * Combines only the numExperts experts whose data sets are most similar to the target data set, 0 combines all experts. The similarity is the squared
+	 * distance of the meta-features, i.e. of the entries from {@link HyperparameterCombination#HYPERPARAMETER_INDEX_RANGE_MAX} on, which are the same for all
+	 * instances of a data set. The experts are selected by the first instance predicted or added, or by {@link #trainExperts(Instance)}, and only the selected
+	 * experts are trained. Afterwards the cost of predictions and updates depends on numExperts instead of the number of experts. The betas of the selected
+	 * experts are scaled so that they sum to the sum of all betas.
+	 * <p>
+	 * Experts which are not selected are not updated either, so the gating should be set before the first update.
+	 */
+	public void setGating(int numExperts)
+	{
+		this.numGatedExperts = numExperts;
+		this.gated = false;
+		this.clearExpertCache();
+	}
+
+	/**
+	 * The experts combined by predictions and updates, in ascending order.
+	 */
+	public int[] getActiveExperts()
+	{
+		return this.activeExperts.clone();
+	}
+
+	/**
+	 * Selects the experts of the gating for the data set of the instance, if gating is enabled and has not selected them yet.
+	 */
+	private void selectExperts(Instance instance)
+	{
+		if(this.gated || this.numGatedExperts <= 0)
+			return;
+		this.gated = true;
+		if(this.numGatedExperts >= this.numberOfExperts)
+			return;
+		final double[] distances = new double[this.numberOfExperts];
+		Integer[] order = new Integer[this.numberOfExperts];
+		for(int expert = 0; expert < this.numberOfExperts; expert++)
+		{
+			Instances data = this.splitTrainData[expert];
+			distances[expert] = data.numInstances() == 0 ? Double.POSITIVE_INFINITY : metaFeatureDistance(data.instance(0), instance);
+			order[expert] = expert;
+		}
+		// Stable, experts at the same distance keep their order.
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer expert1, Integer expert2)
+			{
+				return Double.compare(distances[expert1], distances[expert2]);
+			}
+		});
+		int[] selected = new int[this.numGatedExperts];
+		for(int i = 0; i < selected.length; i++)
+			selected[i] = order[i];
+		Arrays.sort(selected);
+
+		double sumOfBetas = 0, sumOfSelectedBetas = 0;
+		for(int expert = 0; expert < this.numberOfExperts; expert++)
+			sumOfBetas += this.betas[expert];
+		for(int expert : selected)
+			sumOfSelectedBetas += this.betas[expert];
+		for(int expert : selected)
+			this.betas[expert] *= sumOfBetas / sumOfSelectedBetas;
+		this.activeExperts = selected;
+		this.clearExpertCache();
+	}
+
+	/**
+	 * Retires experts from predictions and updates while the run goes on. Before every update, the active experts which contribute less than minContribution
+	 * times the precision mass of the average active expert to the last batch prediction are dropped, as well as those whose mean predictive log-likelihood of
+	 * the target points seen is more than maxLogLikelihoodGap below that of the best expert. Each target point is scored before the experts learn it, with the
+	 * target statistics of the earlier points, which label the target points the experts hold. The betas of the remaining experts are scaled so that they keep
+	 * the sum of the betas.
+	 *
+	 * @param minContribution
+	 *            Relative contribution below which an expert is dropped, 0 disables the criterion.
+	 * @param maxLogLikelihoodGap
+	 *            Largest distance to the best mean log-likelihood, 0 disables the criterion.
+	 * @param minExperts
+	 *            The experts of the largest contribution, or log-likelihood if contributions are not tracked, are never dropped below this number.
+	 */
+	public void setExpertDropping(double minContribution, double maxLogLikelihoodGap, int minExperts)
+	{
+		this.minContribution = minContribution;
+		this.maxLogLikelihoodGap = maxLogLikelihoodGap;
+		this.minExperts = Math.max(1, minExperts);
+		this.contributions = null;
+		if(minContribution > 0)
+		{
+			// Experts without a prediction yet are not dropped.
+			this.contributions = new double[this.numberOfExperts];
+			Arrays.fill(this.contributions, Double.POSITIVE_INFINITY);
+		}
+		this.logLikelihoods = new double[this.numberOfExperts];
+		this.numScoredTargets = 0;
+		this.clearExpertCache();
+	}
+
+	/**
+	 * Scores the target point on the active experts and drops experts by the thresholds of {@link #setExpertDropping(double, double, int)}.
+	 *
+	 * @param target
+	 *            The new target point on the scale of the targets the experts hold, null if there is no such scale yet and the point is not scored.
+	 */
+	private void dropExperts(final Instance target)
+	{
+		if(this.minContribution <= 0 && this.maxLogLikelihoodGap <= 0)
+			return;
+		if(this.maxLogLikelihoodGap > 0 && target != null)
+		{
+			this.forEachExpert(new ExpertAction()
+			{
+				@Override
+				public void run(int expert)
+				{
+					double[] predicted = experts[expert].predictWithUncertainty(target);
+					double var = predicted[1] * predicted[1];
+					double diff = target.target() - predicted[0];
+					logLikelihoods[expert] += -0.5 * Math.log(2 * Math.PI * var) - diff * diff / (2 * var);
+				}
+			});
+			this.numScoredTargets++;
+		}
+		if(this.activeExperts.length <= this.minExperts)
+			return;
+
+		double bestLogLikelihood = Double.NEGATIVE_INFINITY;
+		for(int expert : this.activeExperts)
+			bestLogLikelihood = Math.max(bestLogLikelihood, this.logLikelihoods[expert]);
+		int numKept = 0;
+		boolean[] kept = new boolean[this.numberOfExperts];
+		for(int expert : this.activeExperts)
+		{
+			boolean drop = this.minContribution > 0 && this.contributions[expert] < this.minContribution;
+			if(this.maxLogLikelihoodGap > 0 && this.numScoredTargets > 0)
+			{
+				double gap = (bestLogLikelihood - this.logLikelihoods[expert]) / this.numScoredTargets;
+				drop |= gap > this.maxLogLikelihoodGap;
+			}
+			if(!drop)
+			{
+				kept[expert] = true;
+				numKept++;
+			}
+		}
+		if(numKept == this.activeExperts.length)
+			return;
+		// Keep the best of the dropped experts if too few remain, ties by index.
+		double[] score = this.minContribution > 0 ? this.contributions : this.logLikelihoods;
+		while(numKept < this.minExperts)
+		{
+			int best = -1;
+			for(int expert : this.activeExperts)
+			{
+				if(!kept[expert] && (best < 0 || score[expert] > score[best]))
+					best = expert;
+			}
+			kept[best] = true;
+			numKept++;
+		}
+
+		int[] remaining = new int[numKept];
+		double sumOfBetas = 0, sumOfRemainingBetas = 0;
+		for(int i = 0, j = 0; i < this.activeExperts.length; i++)
+		{
+			int expert = this.activeExperts[i];
+			sumOfBetas += this.betas[expert];
+			if(kept[expert])
+			{
+				remaining[j++] = expert;
+				sumOfRemainingBetas += this.betas[expert];
+			}
+		}
+		for(int expert : remaining)
+			this.betas[expert] *= sumOfBetas / sumOfRemainingBetas;
+		Logger.fine("Dropping " + (this.activeExperts.length - numKept) + " experts, " + numKept + " remain.");
+		this.activeExperts = remaining;
+		this.clearExpertCache();
+	}
+
+	/**
+	 * Squared distance of the meta-features of both instances, the entries with keys from {@link HyperparameterCombination#HYPERPARAMETER_INDEX_RANGE_MAX}
+	 * on. Keys are ascending in both instances.
+	 */
+	private static double metaFeatureDistance(Instance instance1, Instance instance2)
+	{
+		int first = HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX;
+		int size1 = instance1.size(), size2 = instance2.size();
+		int index1 = 0, index2 = 0;
+		while(index1 < size1 && instance1.keyAt(index1) < first)
+			index1++;
+		while(index2 < size2 && instance2.keyAt(index2) < first)
+			index2++;
+		double z = 0;
+		while(index1 < size1 || index2 < size2)
+		{
+			double diff;
+			if(index2 >= size2 || index1 < size1 && instance1.keyAt(index1) < instance2.keyAt(index2))
+				diff = instance1.valueAt(index1++);
+			else if(index1 >= size1 || instance2.keyAt(index2) < instance1.keyAt(index1))
+				diff = instance2.valueAt(index2++);
+			else
+				diff = instance1.valueAt(index1++) - instance2.valueAt(index2++);
+			z += diff * diff;
+		}
+		return z;
+	}
+
+	/**
+	 * In normalized single expert mode only the target GP learns from new observations, the predictions of the experts for a candidate never change. Their
+	 * sums are therefore computed once per candidate and reused by {@link #predict(List, double[], double[])} in later iterations.
+	 */
+	public boolean isExpertCacheUsed()
+	{
+		return this.normalizeInstances && this.mode == SINGLE_EXPERT;
+	}
+
+	/**
+	 * Drops the cached sums of the experts. Call it after changing the experts or their betas directly.
+	 */
+	public void clearExpertCache()
+	{
+		this.cachedCandidates.clear();
+		this.cachedExpertSums = new double[0][];
+	}
+
+	/**
+	 * Lets the kernels of all experts and of the target GP look up squared distances in the given table, null switches back to computing them. Since all
+	 * experts see the same configurations and every data set has constant meta-features, one table serves the whole model including the candidates scored
+	 * by the acquisition function. If a pool was given, the table is marked as shared, see {@link DistanceTable#setShared(boolean)}.
+	 */
+	public void setDistanceTable(DistanceTable distanceTable)
+	{
+		this.distanceTable = distanceTable;
+		if(distanceTable != null && this.pool != null)
+			distanceTable.setShared(true);
+		for(GaussianProcessRegression expert : this.experts)
+			setDistanceTable(expert.getKernel(), distanceTable);
+		setDistanceTable(this.targetGP.getKernel(), distanceTable);
+	}
+
+	/**
+	 * Registers the instances in the distance table before the experts read it in parallel, which they can then do without a lock. The row views created
+	 * when an expert copies an instance into its training data have the same values and are found by them.
+	 */
+	private void registerDistances(Iterable<Instance> instances)
+	{
+		if(this.distanceTable == null || this.pool == null)
+			return;
+		for(Instance instance : instances)
+			this.distanceTable.register(instance);
+	}
+
+	private static void setDistanceTable(Kernel kernel, DistanceTable distanceTable)
+	{
+		if(kernel instanceof SEKernel)
+			((SEKernel) kernel).setDistanceTable(distanceTable);
+	}
+
+	/**
+	 * Releases the off-heap training data of the experts, if any. The model must not be used afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		for(Instances instances : this.splitTrainData)
+		{
+			if(instances instanceof OffHeapInstances)
+				((OffHeapInstances) instances).close();
+		}
+	}
+
 	@Override
 	public double[] predict(Instance instance)
 	{
@@ -362,6 +1136,10 @@ public class ProductOfGPExperts implements SurrogateModel, OnlineLearnable
 		{
 			return InstanceUtils.createSparseInstance(this.normalize(instance.target(), mean, sd), instance.getValues(), instance.getKeys());
 		}
+		else if(instance instanceof FactorizedInstance)
+		{
+			return InstanceUtils.copyInstance(instance, this.normalize(instance.target(), mean, sd));
+		}
 		else
 			throw new IllegalArgumentException("Unsupported instance");
 	}
@@ -1,5 +1,7 @@
 package de.ismll.hylap.surrogateModel;
 
+import java.util.List;
+
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
 
@@ -13,4 +15,9 @@ public interface SurrogateModel
 	 * @param instance
 	 */
 	public double[] predict(Instance instance);
+
+	/**
+	 * Predicts several instances at once, the mean of instance i is written to means[i] and its standard deviation to sds[i].
+	 */
+	public void predict(List<Instance> instances, double[] means, double[] sds);
 }
@@ -0,0 +1,246 @@
+package de.ismll.kernel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import de.ismll.core.Instance;
+import de.ismll.hylap.HyperparameterCombination;
+
+/**
+ * Tabulated squared distances for meta-data sets. An instance consists of a hyper-parameter configuration (keys below
+ * {@link HyperparameterCombination#HYPERPARAMETER_INDEX_RANGE_MAX}) and the meta-features of its data set (all other keys). Since the key sets are disjoint,
+ * the squared distance of two instances is the distance of their configurations plus the distance of their data sets. Configurations are interned through
+ * {@link HyperparameterCombination} and data sets through their meta-features, both get an integer id. One table holds the distances between all
+ * configurations and one the distances between all data sets, so a distance is two lookups instead of a merge of the sparse entries.
+ * <p>
+ * Optionally every dimension is weighted, e.g. by the inverse squared length scales of an ARD kernel. A table can be shared by all kernels with the same
+ * weights. It only holds the configurations and data sets, not the instances, so its size depends on the number of distinct configurations and data sets
+ * only. Every kernel caches the ids of the instances it evaluates itself, see {@link TableIds}.
+ * <p>
+ * The table is not synchronized. Registering appends to the table, everything else only reads it. Kernels which evaluate the table in parallel therefore
+ * need all their instances to be registered up front, from a single thread, and the table marked by {@link #setShared(boolean)}. The ids depend on the order
+ * of registration, the distances do not.
+ */
+public class DistanceTable
+{
+	private final HashMap<HyperparameterCombination, Integer> configurationIds = new HashMap<HyperparameterCombination, Integer>();
+
+	private final HashMap<Part, Integer> datasetIds = new HashMap<Part, Integer>();
+
+	private final ArrayList<Part> configurations = new ArrayList<Part>();
+
+	private final ArrayList<Part> datasets = new ArrayList<Part>();
+
+	/**
+	 * Lower triangular tables, row i has i + 1 entries.
+	 */
+	private final ArrayList<double[]> configurationTable = new ArrayList<double[]>();
+
+	private final ArrayList<double[]> datasetTable = new ArrayList<double[]>();
+
+	/**
+	 * Weight per key, null means unweighted.
+	 */
+	private double[] weights;
+
+	private boolean shared = false;
+
+	public DistanceTable()
+	{
+	}
+
+	public DistanceTable(double[] weights)
+	{
+		this.weights = weights;
+	}
+
+	/**
+	 * Marks the table as read by several threads at the same time. A kernel which meets an unregistered instance of a shared table in a fork/join worker
+	 * fails instead of registering it. Tables which are read by one thread at a time, in a pool or not, register new instances on demand.
+	 */
+	public void setShared(boolean shared)
+	{
+		this.shared = shared;
+	}
+
+	public boolean isShared()
+	{
+		return this.shared;
+	}
+
+	/**
+	 * Changes the weights and recomputes both tables.
+	 */
+	public void setWeights(double[] weights)
+	{
+		this.weights = weights;
+		recompute(this.configurations, this.configurationTable);
+		recompute(this.datasets, this.datasetTable);
+	}
+
+	/**
+	 * Interns the configuration and data set of the instance.
+	 *
+	 * @return the configuration id and the data set id.
+	 */
+	public int[] register(Instance instance)
+	{
+		HyperparameterCombination configuration = HyperparameterCombination.getInstanceFromInstance(instance);
+		Integer configurationId = this.configurationIds.get(configuration);
+		if(configurationId == null)
+		{
+			configurationId = this.configurations.size();
+			this.configurationIds.put(configuration, configurationId);
+			this.append(this.configurations, this.configurationTable, new Part(configuration.keys, configuration.values));
+		}
+		Part dataset = getDataset(instance, configuration.keys.length);
+		Integer datasetId = this.datasetIds.get(dataset);
+		if(datasetId == null)
+		{
+			datasetId = this.datasets.size();
+			this.datasetIds.put(dataset, datasetId);
+			this.append(this.datasets, this.datasetTable, dataset);
+		}
+		return new int[] { configurationId, datasetId };
+	}
+
+	/**
+	 * The ids of the instance without registering it.
+	 *
+	 * @return the configuration id and the data set id, null if the configuration or the data set is not registered yet.
+	 */
+	public int[] lookup(Instance instance)
+	{
+		HyperparameterCombination configuration = HyperparameterCombination.getInstanceFromInstance(instance);
+		Integer configurationId = this.configurationIds.get(configuration);
+		Integer datasetId = this.datasetIds.get(getDataset(instance, configuration.keys.length));
+		return configurationId == null || datasetId == null ? null : new int[] { configurationId, datasetId };
+	}
+
+	/**
+	 * The (weighted) squared L2 norm of the difference of both instances. Registers both instances, kernels use {@link TableIds} instead.
+	 */
+	public double squaredDistance(Instance instance1, Instance instance2)
+	{
+		return this.squaredDistance(this.register(instance1), this.register(instance2));
+	}
+
+	/**
+	 * The (weighted) squared L2 norm of the difference of two registered instances, given by their ids.
+	 */
+	public double squaredDistance(int[] id1, int[] id2)
+	{
+		return lookup(this.configurationTable, id1[0], id2[0]) + lookup(this.datasetTable, id1[1], id2[1]);
+	}
+
+	/**
+	 * The meta-features of the instance, its entries from index split on.
+	 */
+	private static Part getDataset(Instance instance, int split)
+	{
+		int[] keys = new int[instance.size() - split];
+		double[] values = new double[keys.length];
+		for(int i = 0; i < keys.length; i++)
+		{
+			keys[i] = instance.keyAt(split + i);
+			values[i] = instance.valueAt(split + i);
+		}
+		return new Part(keys, values);
+	}
+
+	public int numConfigurations()
+	{
+		return this.configurations.size();
+	}
+
+	public int numDatasets()
+	{
+		return this.datasets.size();
+	}
+
+	private static double lookup(ArrayList<double[]> table, int i, int j)
+	{
+		return i >= j ? table.get(i)[j] : table.get(j)[i];
+	}
+
+	private void append(ArrayList<Part> parts, ArrayList<double[]> table, Part part)
+	{
+		parts.add(part);
+		double[] row = new double[parts.size()];
+		for(int j = 0; j < row.length - 1; j++)
+			row[j] = this.squaredDistance(part, parts.get(j));
+		table.add(row);
+	}
+
+	private void recompute(ArrayList<Part> parts, ArrayList<double[]> table)
+	{
+		for(int i = 0; i < parts.size(); i++)
+		{
+			double[] row = table.get(i);
+			for(int j = 0; j < i; j++)
+				row[j] = this.squaredDistance(parts.get(i), parts.get(j));
+		}
+	}
+
+	private double squaredDistance(Part part1, Part part2)
+	{
+		int[] keys1 = part1.keys, keys2 = part2.keys;
+		double[] values1 = part1.values, values2 = part2.values;
+		double z = 0;
+		int index1 = 0, index2 = 0;
+		while(index1 < keys1.length || index2 < keys2.length)
+		{
+			int key;
+			double diff;
+			if(index2 >= keys2.length || index1 < keys1.length && keys1[index1] < keys2[index2])
+			{
+				key = keys1[index1];
+				diff = values1[index1++];
+			}
+			else if(index1 >= keys1.length || keys2[index2] < keys1[index1])
+			{
+				key = keys2[index2];
+				diff = values2[index2++];
+			}
+			else
+			{
+				key = keys1[index1];
+				diff = values1[index1++] - values2[index2++];
+			}
+			z += this.weights == null ? diff * diff : this.weights[key] * diff * diff;
+		}
+		return z;
+	}
+
+	/**
+	 * Sparse entries of a configuration or of the meta-features of a data set.
+	 */
+	private static class Part
+	{
+		final int[] keys;
+
+		final double[] values;
+
+		Part(int[] keys, double[] values)
+		{
+			this.keys = keys;
+			this.values = values;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * Arrays.hashCode(this.keys) + Arrays.hashCode(this.values);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Part))
+				return false;
+			Part other = (Part) obj;
+			return Arrays.equals(this.keys, other.keys) && Arrays.equals(this.values, other.values);
+		}
+	}
+}
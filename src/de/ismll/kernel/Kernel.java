@@ -1,27 +1,42 @@
 package de.ismll.kernel;
 
-import org.apache.commons.math3.linear.LUDecomposition;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
+import de.ismll.core.linalg.CholeskyFactor;
+import de.ismll.core.linalg.PackedMatrices;
 
 public abstract class Kernel
 {
 	protected double learnRate = 0.1;
 
+	/**
+	 * Workspaces of {@link #getAATMinusKInverse(double[], CholeskyFactor)}, reused between calls.
+	 */
+	private double[] inverseWorkspace = new double[0], weightWorkspace = new double[0];
+
 	public abstract double computeValue(Instance instance1, Instance instance2);
 
 	public abstract double[][] computeKernel(Instances instances);
 
+	/**
+	 * Writes the lower triangle of the kernel matrix of instances packed row by row into packed, see {@link PackedMatrices}.
+	 */
+	public void computeKernel(Instances instances, double[] packed)
+	{
+		double[][] kArray = this.computeKernel(instances);
+		for(int i = 0, offset = 0; i < kArray.length; offset += ++i)
+			System.arraycopy(kArray[i], 0, packed, offset, i + 1);
+	}
+
 	/**
 	 * One update step of the kernel parameters. Call a couple of times to iteratively maximize the likelihood on train. Do not forget to recompute K and alpha.
 	 * 
+	 * @param L
+	 *            Lower Cholesky factor of K, K^-1 is computed from it.
 	 * @param initialize
 	 *            If it is true, reinitialize (setting history of adagrad to zero etc.)
 	 */
-	public void updateKernelParameters(Instances train, RealMatrix K, RealVector alpha, boolean initialize)
+	public void updateKernelParameters(Instances train, CholeskyFactor L, double[] alpha, boolean initialize)
 	{
 		if(initialize)
 			this.initialize();
@@ -29,21 +44,90 @@ public abstract class Kernel
 
 	protected abstract void initialize();
 
-	protected double computeDerivative(RealMatrix aaTMinusKInverse, RealMatrix kernelDerivativeMatrix)
+	/**
+	 * Resets the parameters to their initial values.
+	 */
+	public void resetParameters()
+	{
+		this.initialize();
+	}
+
+	/**
+	 * All kernel parameters as one vector, the order is defined by the kernel.
+	 */
+	public abstract double[] getParameters();
+
+	public abstract void setParameters(double[] parameters);
+
+	/**
+	 * Gradient of the log marginal likelihood of train with respect to {@link #getParameters()}.
+	 *
+	 * @param L
+	 *            Lower Cholesky factor of the kernel matrix of train for the current parameters.
+	 * @param alpha
+	 *            K^-1 * y for the current parameters.
+	 */
+	public abstract double[] computeGradient(Instances train, CholeskyFactor L, double[] alpha);
+
+	/**
+	 * Called after instances were appended to train, e.g. by an online update. Kernels which cache data about the training instances can extend it here.
+	 */
+	public void instancesAdded(Instances train)
+	{
+	}
+
+	/**
+	 * Called after the instance at index was removed from train.
+	 */
+	public void instanceRemoved(Instances train, int index)
+	{
+	}
+
+	/**
+	 * 0.5 * tr(W * D) for the packed symmetric n x n matrices W and D, summed row by row over the full matrices.
+	 */
+	protected double computeDerivative(double[] aaTMinusKInverse, double[] kernelDerivative, int n)
 	{
 		double trace = 0;
-		for(int i = 0; i < aaTMinusKInverse.getRowDimension(); i++)
+		for(int i = 0; i < n; i++)
 		{
-			for(int j = 0; j < aaTMinusKInverse.getColumnDimension(); j++)
+			for(int j = 0; j < n; j++)
 			{
-				trace += aaTMinusKInverse.getEntry(i, j) * kernelDerivativeMatrix.getEntry(j, i);
+				int index = PackedMatrices.index(i, j);
+				trace += aaTMinusKInverse[index] * kernelDerivative[index];
 			}
 		}
 		return 0.5 * trace;
 	}
 
-	protected RealMatrix getAATMinusKInverse(RealVector alpha, RealMatrix K)
+	/**
+	 * Computes alpha * alpha^T - K^-1 from the Cholesky factor L of K as packed symmetric matrix. L is inverted in place of a copy of its entries and K^-1 =
+	 * L^-T * L^-1, so no further decomposition of K is needed. The returned array is a workspace which is overwritten by the next call.
+	 */
+	protected double[] getAATMinusKInverse(double[] alpha, CholeskyFactor L)
 	{
-		return alpha.outerProduct(alpha).add(new LUDecomposition(K).getSolver().getInverse().scalarMultiply(-1));
+		int n = L.size();
+		int length = PackedMatrices.length(n);
+		if(this.inverseWorkspace.length < length)
+		{
+			this.inverseWorkspace = new double[length];
+			this.weightWorkspace = new double[length];
+		}
+		double[] inverse = this.inverseWorkspace, w = this.weightWorkspace;
+		System.arraycopy(L.getData(), 0, inverse, 0, length);
+		PackedMatrices.invertLower(inverse, n);
+
+		for(int i = 0, rowI = 0; i < n; rowI += ++i)
+		{
+			double alphaI = alpha[i];
+			for(int j = 0; j <= i; j++)
+			{
+				double kInverse = 0;
+				for(int k = i, rowK = rowI; k < n; rowK += ++k)
+					kInverse += inverse[rowK + i] * inverse[rowK + j];
+				w[rowI + j] = alphaI * alpha[j] - kInverse;
+			}
+		}
+		return w;
 	}
 }
@@ -1,11 +1,10 @@
 package de.ismll.kernel;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
+import java.util.Arrays;
 
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
+import de.ismll.core.linalg.CholeskyFactor;
 
 public class SEARDKernel extends Kernel
 {
@@ -20,12 +19,32 @@ public class SEARDKernel extends Kernel
 
 	private double[] sumL;
 
-	// private float[][][] summandsOfL2NormOfDifference;
+	/**
+	 * Default memory budget of the per-dimension differences.
+	 */
+	public static final long DEFAULT_MAX_CACHE_BYTES = 256L << 20;
+
+	private SquaredDifferences squaredDifferences;
+
+	/**
+	 * Reused between updates, one entry per pair of training instances.
+	 */
+	private double[] pairWorkspace;
 
-	// private Instances instances;
+	private long maxCacheBytes = DEFAULT_MAX_CACHE_BYTES;
 
 	private int length;
 
+	/**
+	 * If set, the weighted squared distances are looked up instead of computed. The weights follow sigma_l.
+	 */
+	private DistanceTable distanceTable;
+
+	/**
+	 * Ids of the evaluated instances in the table.
+	 */
+	private TableIds tableIds;
+
 	public SEARDKernel(int length)
 	{
 		this.length = length;
@@ -49,15 +68,53 @@ public class SEARDKernel extends Kernel
 		this.sumY = 0.001;
 		this.sigma_f = 1;
 		this.sigma_y = 0.001;
+		this.updateDistanceTable();
+	}
+
+	private void updateDistanceTable()
+	{
+		if(this.distanceTable == null)
+			return;
+		double[] weights = new double[this.sigma_l.length];
+		for(int d = 0; d < weights.length; d++)
+			weights[d] = 1 / (this.sigma_l[d] * this.sigma_l[d]);
+		this.distanceTable.setWeights(weights);
+	}
+
+	/**
+	 * Switches the tabulated distances of {@link DistanceTable} on or off. The table is owned by this kernel since its weights depend on the length scales.
+	 */
+	public void setUseDistanceTable(boolean useDistanceTable)
+	{
+		this.distanceTable = useDistanceTable ? new DistanceTable() : null;
+		this.tableIds = useDistanceTable ? new TableIds(this.distanceTable) : null;
+		this.updateDistanceTable();
+	}
+
+	public boolean isUseDistanceTable()
+	{
+		return this.distanceTable != null;
+	}
+
+	/**
+	 * Memory budget for the per-dimension squared differences used by {@link #updateKernelParameters(Instances, CholeskyFactor, double[], boolean)} and by
+	 * the kernel matrix of the training instances. It includes the training values extracted per dimension, a workspace of one double per pair comes on top.
+	 * If the differences of all dimensions do not fit, they are recomputed in blocks of dimensions in every update.
+	 */
+	public void setMaxCacheBytes(long maxCacheBytes)
+	{
+		this.maxCacheBytes = maxCacheBytes;
+		this.squaredDifferences = null;
+	}
+
+	public long getMaxCacheBytes()
+	{
+		return this.maxCacheBytes;
 	}
 
 	@Override
 	public double[][] computeKernel(Instances instances)
 	{
-		// if(!instances.equals(this.instances))
-		// {
-		// precomputeSummandsOfSquaredL2NormOfDifferences(instances);
-		// }
 		double[][] kArray = new double[instances.numInstances()][instances.numInstances()];
 		for(int i = 0; i < instances.numInstances(); i++)
 			for(int j = i; j < instances.numInstances(); j++)
@@ -68,34 +125,31 @@ public class SEARDKernel extends Kernel
 		return kArray;
 	}
 
-	// private void precomputeSummandsOfSquaredL2NormOfDifferences(Instances instances)
-	// {
-	// this.summandsOfL2NormOfDifference = new float[instances.numInstances()][][];
-	// for(int i = 0; i < summandsOfL2NormOfDifference.length; i++)
-	// {
-	// summandsOfL2NormOfDifference[i] = new float[i + 1][instances.numValues()];
-	// for(int j = 0; j < summandsOfL2NormOfDifference[i].length; j++)
-	// {
-	// for(int d = 0; d < instances.numValues(); d++)
-	// {
-	// float absDiff = (float) (instances.instance(i).getValue(d) - instances.instance(j).getValue(d));
-	// summandsOfL2NormOfDifference[i][j][d] = absDiff * absDiff;
-	// }
-	// }
-	// }
-	// }
-
-	// private double computeValue(int i, int j)
-	// {
-	// if(i == j)
-	// {
-	// return Math.pow(this.sigma_f, 2) * this.getExponentialPart(i, j) + this.sigma_y * this.sigma_y;
-	// }
-	// else
-	// {
-	// return Math.pow(this.sigma_f, 2) * this.getExponentialPart(i, j);
-	// }
-	// }
+	/**
+	 * If instances are the training instances of the cached squared differences, i.e. from the second epoch of learning the kernel parameters on, the
+	 * exponential parts are taken from the weighted distances of the cache instead of a key merge per pair.
+	 */
+	@Override
+	public void computeKernel(Instances instances, double[] packed)
+	{
+		if(this.squaredDifferences != null && this.squaredDifferences.holds(instances))
+		{
+			int n = this.squaredDifferences.numRows();
+			double[] pairs = this.weightedSquaredDistances(this.squaredDifferences);
+			double sigmaF2 = Math.pow(this.sigma_f, 2);
+			// Pairs exclude the diagonal, so row i of the pairs starts i entries before row i of K.
+			for(int i = 0, offset = 0; i < n; offset += ++i)
+			{
+				for(int j = 0; j < i; j++)
+					packed[offset + j] = sigmaF2 * Math.exp(-pairs[offset - i + j] / 2);
+				packed[offset + i] = sigmaF2 + this.sigma_y * this.sigma_y;
+			}
+			return;
+		}
+		for(int i = 0, offset = 0; i < instances.numInstances(); offset += ++i)
+			for(int j = 0; j <= i; j++)
+				packed[offset + j] = this.computeValue(instances.instance(j), instances.instance(i));
+	}
 
 	@Override
 	public double computeValue(Instance instance1, Instance instance2)
@@ -110,111 +164,162 @@ public class SEARDKernel extends Kernel
 		}
 	}
 
-	// private double getExponentialPart(int i, int j)
-	// {
-	// double sum = 0;
-	// if(j > i)
-	// {
-	// for(int d = 0; d < this.summandsOfL2NormOfDifference[0][0].length; d++)
-	// {
-	// sum += summandsOfL2NormOfDifference[j][i][d] / this.sigma_l[d] / this.sigma_l[d];
-	// }
-	// }
-	// else
-	// {
-	// for(int d = 0; d < this.summandsOfL2NormOfDifference[0][0].length; d++)
-	// {
-	// sum += summandsOfL2NormOfDifference[i][j][d] / this.sigma_l[d] / this.sigma_l[d];
-	// }
-	// }
-	// for(int k = 0; k < this.sigma_l.length; k++)
-	// sum +=
-	// return Math.exp(-0.5 * sum);
-	// }
-
 	private double getExponentialPart(Instance instance1, Instance instance2)
 	{
-		int[] keys1 = instance1.getKeys();
-		double[] values1 = instance1.getValues();
-		int[] keys2 = instance2.getKeys();
-		double[] values2 = instance2.getValues();
+		if(this.tableIds != null)
+			return Math.exp(-this.tableIds.squaredDistance(instance1, instance2) / 2);
+		int size1 = instance1.size(), size2 = instance2.size();
 
 		double z = 0;
 		int index1 = 0, index2 = 0;
-		while(index1 < keys1.length || index2 < keys2.length)
+		while(index1 < size1 || index2 < size2)
 		{
-			if(index1 < keys1.length && (index2 >= keys2.length || keys2[index2] > keys1[index1]))
-				z += Math.pow(values1[index1++], 2) / Math.pow(this.sigma_l[keys1[index1 - 1]], 2);
-			else if(index2 < keys2.length && (index1 >= keys1.length || keys1[index1] > keys2[index2]))
-				z += Math.pow(values2[index2++], 2) / Math.pow(this.sigma_l[keys2[index2 - 1]], 2);
-			else if(index1 < keys1.length && index2 < keys2.length)
-				z += Math.pow(values1[index1++] - values2[index2++], 2) / Math.pow(this.sigma_l[keys1[index1 - 1]], 2);
+			int key1 = index1 < size1 ? instance1.keyAt(index1) : Integer.MAX_VALUE;
+			int key2 = index2 < size2 ? instance2.keyAt(index2) : Integer.MAX_VALUE;
+			if(key1 < key2)
+				z += Math.pow(instance1.valueAt(index1++), 2) / Math.pow(this.sigma_l[key1], 2);
+			else if(key2 < key1)
+				z += Math.pow(instance2.valueAt(index2++), 2) / Math.pow(this.sigma_l[key2], 2);
+			else
+				z += Math.pow(instance1.valueAt(index1++) - instance2.valueAt(index2++), 2) / Math.pow(this.sigma_l[key1], 2);
 		}
 		return Math.exp(-z / 2);
 	}
 
 	@Override
-	public void updateKernelParameters(Instances train, RealMatrix K, RealVector alpha, boolean initialize)
+	public void updateKernelParameters(Instances train, CholeskyFactor L, double[] alpha, boolean initialize)
 	{
-		super.updateKernelParameters(train, K, alpha, initialize);
-		// if(!train.equals(this.instances) || this.summandsOfL2NormOfDifference == null)
-		// precomputeSummandsOfSquaredL2NormOfDifferences(train);
+		super.updateKernelParameters(train, L, alpha, initialize);
+		double[] sums = this.computeGradientSums(train, L, alpha);
 
-		int dimension = K.getColumnDimension();
+		// Derivative of sigma_y: 0.5 * tr(W * 2 * sigma_y * I)
+		double gradientY = this.sigma_y * sums[0];
+		this.sumY += gradientY * gradientY;
+		this.sigma_y += this.learnRate / Math.sqrt(this.sumY) * gradientY;
 
-		RealMatrix aaTMinusKInverse = this.getAATMinusKInverse(alpha, K);
+		// Derivative of sigma_f: 0.5 * tr(W * 2 * sigma_f * E), the diagonal of E is one.
+		double gradientF = this.sigma_f * (sums[0] + 2 * sums[1]);
+		this.sumF += gradientF * gradientF;
+		this.sigma_f += this.learnRate / Math.sqrt(this.sumF) * gradientF;
 
-		double[][] exponentialParts = new double[dimension][];
-		for(int i = 0; i < exponentialParts.length; i++)
+		// Derivative of all sigma_l: sum over i > j of W_ij * sigma_f^2 * E_ij * (x_id - x_jd)^2 / sigma_l[d]^3. The gradient of a constant dimension is zero.
+		for(int d = 0; d < this.sigma_l.length; d++)
 		{
-			exponentialParts[i] = new double[i + 1];
-			for(int j = 0; j < exponentialParts[i].length; j++)
-			{
-				exponentialParts[i][j] = this.getExponentialPart(train.instance(i), train.instance(j));
-			}
+			if(this.squaredDifferences.isConstant(d))
+				continue;
+			double gradientL = this.sigma_f * this.sigma_f * sums[2 + d] / this.sigma_l[d] / this.sigma_l[d] / this.sigma_l[d];
+			this.sumL[d] += gradientL * gradientL;
+			this.sigma_l[d] += this.learnRate / Math.sqrt(this.sumL[d]) * gradientL;
 		}
+		this.updateDistanceTable();
+	}
 
-		// Derivative of sigma_y
-		double[] kernelDerivativeDiag = new double[dimension];
-		for(int i = 0; i < kernelDerivativeDiag.length; i++)
-		{
-			kernelDerivativeDiag[i] = 2 * this.sigma_y;
-		}
-		double gradientY = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealDiagonalMatrix(kernelDerivativeDiag));
-		this.sumY += gradientY * gradientY;
-		this.sigma_y += this.learnRate / Math.sqrt(this.sumY) * gradientY;
+	/**
+	 * Parameters in the order sigma_f, sigma_y, sigma_l[0], ..., sigma_l[length - 1].
+	 */
+	@Override
+	public double[] getParameters()
+	{
+		double[] parameters = new double[2 + this.length];
+		parameters[0] = this.sigma_f;
+		parameters[1] = this.sigma_y;
+		System.arraycopy(this.sigma_l, 0, parameters, 2, this.length);
+		return parameters;
+	}
 
-		// Derivative of sigma_f
-		double[][] kernelDerivative = new double[dimension][dimension];
-		for(int i = 0; i < exponentialParts.length; i++)
+	@Override
+	public void setParameters(double[] parameters)
+	{
+		this.sigma_f = parameters[0];
+		this.sigma_y = parameters[1];
+		this.sigma_l = Arrays.copyOfRange(parameters, 2, 2 + this.length);
+		this.updateDistanceTable();
+	}
+
+	@Override
+	public double[] computeGradient(Instances train, CholeskyFactor L, double[] alpha)
+	{
+		double[] sums = this.computeGradientSums(train, L, alpha);
+		double[] gradient = new double[2 + this.length];
+		gradient[0] = this.sigma_f * (sums[0] + 2 * sums[1]);
+		gradient[1] = this.sigma_y * sums[0];
+		for(int d = 0; d < this.length; d++)
+			gradient[2 + d] = this.sigma_f * this.sigma_f * sums[2 + d] / this.sigma_l[d] / this.sigma_l[d] / this.sigma_l[d];
+		return gradient;
+	}
+
+	/**
+	 * One sweep over the lower triangle of W = alpha * alpha^T - K^-1. All derivatives of K are multiples of the exponential part E, so every gradient is a
+	 * weighted sum of the products W_ij * E_ij.
+	 *
+	 * @return tr(W), the sum of W_ij * E_ij over i > j and for every dimension d the sum of W_ij * E_ij * (x_id - x_jd)^2 over i > j.
+	 */
+	private double[] computeGradientSums(Instances train, CholeskyFactor L, double[] alpha)
+	{
+		if(this.squaredDifferences == null)
+			this.squaredDifferences = new SquaredDifferences(this.length, this.maxCacheBytes);
+		SquaredDifferences differences = this.squaredDifferences;
+		differences.update(train);
+		int blockSize = differences.blockSize();
+
+		int dimension = L.size();
+		int numPairs = differences.numPairs();
+		double[] aaTMinusKInverse = this.getAATMinusKInverse(alpha, L);
+		double[] pairs = this.weightedSquaredDistances(differences);
+
+		// Afterwards pairs holds W_ij * exp(-z_ij / 2) for i > j. Pairs exclude the diagonal, W includes it, so row i of W starts at offset + i.
+		double[] sums = new double[2 + this.length];
+		for(int i = 0, offset = 0; i < dimension; offset += i, i++)
 		{
-			for(int j = 0; j < exponentialParts[i].length; j++)
+			sums[0] += aaTMinusKInverse[offset + i + i];
+			for(int j = 0; j < i; j++)
 			{
-				kernelDerivative[i][j] = 2 * this.sigma_f * exponentialParts[i][j];
-				kernelDerivative[j][i] = kernelDerivative[i][j];
+				double product = aaTMinusKInverse[offset + i + j] * Math.exp(-pairs[offset + j] / 2);
+				pairs[offset + j] = product;
+				sums[1] += product;
 			}
 		}
-		double gradientF = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealMatrix(kernelDerivative));
-		this.sumF += gradientF * gradientF;
-		this.sigma_f += this.learnRate / Math.sqrt(this.sumF) * gradientF;
 
-		// Derivative of all sigma_l
-		for(int d = 0; d < this.sigma_l.length; d++)
+		for(int d = 0; d < this.length; d++)
+		{
+			if(differences.isConstant(d))
+				continue;
+			differences.load(d - d % blockSize);
+			float[] squaredDiff = differences.dimension(d);
+			double sum = 0;
+			for(int p = 0; p < numPairs; p++)
+				sum += pairs[p] * squaredDiff[p];
+			sums[2 + d] = sum;
+		}
+		return sums;
+	}
+
+	/**
+	 * Weighted squared distances of all pairs of the cached training instances for the current length scales, accumulated dimension by dimension. The
+	 * returned array is a workspace which is overwritten by the next call.
+	 */
+	private double[] weightedSquaredDistances(SquaredDifferences differences)
+	{
+		int blockSize = differences.blockSize();
+		int numPairs = differences.numPairs();
+		if(this.pairWorkspace == null || this.pairWorkspace.length < numPairs)
+			this.pairWorkspace = new double[numPairs];
+		double[] pairs = this.pairWorkspace;
+		Arrays.fill(pairs, 0, numPairs, 0);
+		for(int start = 0; start < this.length; start += blockSize)
 		{
-			kernelDerivative = new double[dimension][dimension];
-			for(int i = 0; i < exponentialParts.length; i++)
+			differences.load(start);
+			for(int d = start; d < Math.min(this.length, start + blockSize); d++)
 			{
-				for(int j = 0; j < exponentialParts[i].length; j++)
-				{
-					kernelDerivative[i][j] = sigma_f * sigma_f * exponentialParts[i][j] * Math.pow(train.instance(i).getValue(d) - train.instance(j).getValue(d), 2) / this.sigma_l[d]
-							/ this.sigma_l[d] / this.sigma_l[d];
-					kernelDerivative[j][i] = kernelDerivative[i][j];
-				}
+				float[] squaredDiff = differences.dimension(d);
+				if(squaredDiff == null)
+					continue;
+				double weight = 1 / (this.sigma_l[d] * this.sigma_l[d]);
+				for(int p = 0; p < numPairs; p++)
+					pairs[p] += squaredDiff[p] * weight;
 			}
-			double gradientL = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealMatrix(kernelDerivative));
-			this.sumL[d] += gradientL * gradientL;
-			this.sigma_l[d] += this.learnRate / Math.sqrt(this.sumL[d]) * gradientL;
 		}
+		return pairs;
 	}
 
 	@Override
@@ -241,6 +346,7 @@ public class SEARDKernel extends Kernel
 	public void setSigmaL(double[] sigmaL)
 	{
 		this.sigma_l = sigmaL;
+		this.updateDistanceTable();
 	}
 
 	public double[] getSigmaL()
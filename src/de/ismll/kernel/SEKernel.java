@@ -1,11 +1,11 @@
 package de.ismll.kernel;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
+import java.util.Arrays;
 
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
+import de.ismll.core.linalg.CholeskyFactor;
+import de.ismll.core.linalg.PackedMatrices;
 
 public class SEKernel extends Kernel
 {
@@ -19,10 +19,30 @@ public class SEKernel extends Kernel
 	 */
 	private double sumF, sumL, sumY;
 
-	private float[][] squaredL2NormOfDiff;
+	/**
+	 * Squared distances between the cached training instances, packed lower triangle (row i starts at i * (i + 1) / 2).
+	 */
+	private float[] squaredL2NormOfDiff = new float[0];
 
+	/**
+	 * The instances the distances belong to. The cache is valid as long as its rows are still the first rows of this object.
+	 */
 	private Instances instances;
 
+	private Instance[] cachedInstances = new Instance[0];
+
+	private int numCached;
+
+	/**
+	 * If set, squared distances are looked up in its table instead of computed.
+	 */
+	private TableIds tableIds;
+
+	/**
+	 * Packed exponential parts and kernel derivatives of the training instances, reused between updates.
+	 */
+	private double[] exponentialParts = new double[0], kernelDerivative = new double[0];
+
 	public SEKernel()
 	{
 		this.initialize();
@@ -42,34 +62,98 @@ public class SEKernel extends Kernel
 	@Override
 	public double[][] computeKernel(Instances instances)
 	{
-		if(!instances.equals(this.instances))
-		{
-			precomputeSquaredL2NormOfDifferences(instances);
-		}
+		this.updateSquaredL2NormOfDifferences(instances);
 		double[][] kArray = new double[instances.numInstances()][instances.numInstances()];
-		for(int i = 0; i < this.squaredL2NormOfDiff.length; i++)
-			for(int j = 0; j < this.squaredL2NormOfDiff[i].length; j++)
+		for(int i = 0, offset = 0; i < this.numCached; i++, offset += i)
+			for(int j = 0; j <= i; j++)
 			{
-				kArray[i][j] = this.computeValue(i, j);
+				kArray[i][j] = this.computeValue(i, j, offset + j);
 				kArray[j][i] = kArray[i][j];
 			}
 		return kArray;
 	}
 
-	private void precomputeSquaredL2NormOfDifferences(Instances instances)
+	@Override
+	public void computeKernel(Instances instances, double[] packed)
+	{
+		this.updateSquaredL2NormOfDifferences(instances);
+		for(int i = 0, offset = 0; i < this.numCached; i++, offset += i)
+			for(int j = 0; j <= i; j++)
+				packed[offset + j] = this.computeValue(i, j, offset + j);
+	}
+
+	/**
+	 * Appends the distances of all instances which were added since the last call. The cache is only rebuilt if the instances are a different object or if
+	 * one of the cached rows was removed or replaced.
+	 */
+	private void updateSquaredL2NormOfDifferences(Instances instances)
 	{
-		this.squaredL2NormOfDiff = new float[instances.numInstances()][];
-		for(int i = 0; i < squaredL2NormOfDiff.length; i++)
+		int n = instances.numInstances();
+		boolean valid = instances == this.instances && n >= this.numCached;
+		for(int i = 0; valid && i < this.numCached; i++)
+			valid = instances.instance(i) == this.cachedInstances[i];
+		if(!valid)
 		{
-			squaredL2NormOfDiff[i] = new float[i + 1];
-			for(int j = 0; j < squaredL2NormOfDiff[i].length; j++)
-			{
-				if(i == j)
-					squaredL2NormOfDiff[i][j] = 0;
-				else
-					squaredL2NormOfDiff[i][j] = (float) this.getSquaredL2NormOfDiff(instances.instance(i), instances.instance(j));
-			}
+			this.instances = instances;
+			this.numCached = 0;
+		}
+		if(n == this.numCached)
+			return;
+
+		if(n > this.cachedInstances.length)
+		{
+			int capacity = Math.max(n, 2 * this.cachedInstances.length);
+			this.cachedInstances = Arrays.copyOf(this.cachedInstances, capacity);
+			this.squaredL2NormOfDiff = Arrays.copyOf(this.squaredL2NormOfDiff, (int) ((long) capacity * (capacity + 1) / 2));
+		}
+		for(int i = this.numCached; i < n; i++)
+		{
+			Instance instance = instances.instance(i);
+			this.cachedInstances[i] = instance;
+			int offset = i * (i + 1) / 2;
+			for(int j = 0; j < i; j++)
+				this.squaredL2NormOfDiff[offset + j] = (float) this.getSquaredL2NormOfDiff(instance, this.cachedInstances[j]);
+			this.squaredL2NormOfDiff[offset + i] = 0;
 		}
+		this.numCached = n;
+	}
+
+	/**
+	 * Appends the distances of new instances to the cache right away.
+	 */
+	@Override
+	public void instancesAdded(Instances train)
+	{
+		if(train == this.instances)
+			this.updateSquaredL2NormOfDifferences(train);
+	}
+
+	/**
+	 * Removes the row and column of the instance from the cache, the distances of the others are kept.
+	 */
+	@Override
+	public void instanceRemoved(Instances train, int index)
+	{
+		if(train != this.instances || index >= this.numCached)
+			return;
+		for(int i = index + 1; i < this.numCached; i++)
+		{
+			int from = i * (i + 1) / 2, to = (i - 1) * i / 2;
+			System.arraycopy(this.squaredL2NormOfDiff, from, this.squaredL2NormOfDiff, to, index);
+			System.arraycopy(this.squaredL2NormOfDiff, from + index + 1, this.squaredL2NormOfDiff, to + index, i - index);
+		}
+		System.arraycopy(this.cachedInstances, index + 1, this.cachedInstances, index, this.numCached - index - 1);
+		this.cachedInstances[--this.numCached] = null;
+	}
+
+	/**
+	 * Drops the cached distances, e.g. after the values of a training instance were changed in place.
+	 */
+	public void clearCache()
+	{
+		this.instances = null;
+		this.numCached = 0;
+		Arrays.fill(this.cachedInstances, null);
 	}
 
 	@Override
@@ -86,7 +170,7 @@ public class SEKernel extends Kernel
 
 	}
 
-	private double computeValue(int i, int j)
+	private double computeValue(int i, int j, int index)
 	{
 		if(i == j)
 		{
@@ -94,7 +178,7 @@ public class SEKernel extends Kernel
 		}
 		else
 		{
-			return this.sigma_f * this.sigma_f * Math.exp(-squaredL2NormOfDiff[i][j] / 2 / this.sigma_l / this.sigma_l);
+			return this.sigma_f * this.sigma_f * Math.exp(-squaredL2NormOfDiff[index] / 2 / this.sigma_l / this.sigma_l);
 		}
 
 	}
@@ -112,81 +196,103 @@ public class SEKernel extends Kernel
 	 */
 	private double getSquaredL2NormOfDiff(Instance instance1, Instance instance2)
 	{
-		int[] keys1 = instance1.getKeys();
-		double[] values1 = instance1.getValues();
-		int[] keys2 = instance2.getKeys();
-		double[] values2 = instance2.getValues();
+		if(this.tableIds != null)
+			return this.tableIds.squaredDistance(instance1, instance2);
+		int size1 = instance1.size(), size2 = instance2.size();
 
 		double z = 0;
 		int index1 = 0, index2 = 0;
-		while(index1 < keys1.length || index2 < keys2.length)
+		while(index1 < size1 || index2 < size2)
 		{
-			if(index1 < keys1.length && (index2 >= keys2.length || keys2[index2] > keys1[index1]))
-				z += Math.pow(values1[index1++], 2);
-			else if(index2 < keys2.length && (index1 >= keys1.length || keys1[index1] > keys2[index2]))
-				z += Math.pow(values2[index2++], 2);
-			else if(index1 < keys1.length && index2 < keys2.length)
-				z += Math.pow(values1[index1++] - values2[index2++], 2);
+			int key1 = index1 < size1 ? instance1.keyAt(index1) : Integer.MAX_VALUE;
+			int key2 = index2 < size2 ? instance2.keyAt(index2) : Integer.MAX_VALUE;
+			if(key1 < key2)
+				z += Math.pow(instance1.valueAt(index1++), 2);
+			else if(key2 < key1)
+				z += Math.pow(instance2.valueAt(index2++), 2);
+			else
+				z += Math.pow(instance1.valueAt(index1++) - instance2.valueAt(index2++), 2);
 		}
 		return z;
 	}
 
 	@Override
-	public void updateKernelParameters(Instances train, RealMatrix K, RealVector alpha, boolean initialize)
+	public void updateKernelParameters(Instances train, CholeskyFactor L, double[] alpha, boolean initialize)
 	{
-		super.updateKernelParameters(train, K, alpha, initialize);
-		if(!train.equals(this.instances) || this.squaredL2NormOfDiff == null)
-			precomputeSquaredL2NormOfDifferences(train);
-
-		int dimension = K.getColumnDimension();
-
-		RealMatrix aaTMinusKInverse = this.getAATMinusKInverse(alpha, K);
-		// Derivative for sigma_y:
+		super.updateKernelParameters(train, L, alpha, initialize);
+		this.updateSquaredL2NormOfDifferences(train);
 
-		double[][] exponentialParts = new double[dimension][];
-		for(int i = 0; i < this.squaredL2NormOfDiff.length; i++)
+		int dimension = L.size();
+		int length = PackedMatrices.length(dimension);
+		if(this.exponentialParts.length < length)
 		{
-			exponentialParts[i] = new double[this.squaredL2NormOfDiff[i].length];
-			for(int j = 0; j < this.squaredL2NormOfDiff[i].length; j++)
-			{
-				exponentialParts[i][j] = Math.exp(-this.squaredL2NormOfDiff[i][j] / 2 / this.sigma_l / this.sigma_l);
-			}
+			this.exponentialParts = new double[length];
+			this.kernelDerivative = new double[length];
 		}
-		double[] kernelDerivativeDiag = new double[dimension];
-		for(int i = 0; i < kernelDerivativeDiag.length; i++)
-		{
-			kernelDerivativeDiag[i] = 2 * this.sigma_y;
-		}
-		double gradientY = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealDiagonalMatrix(kernelDerivativeDiag));
+
+		double[] aaTMinusKInverse = this.getAATMinusKInverse(alpha, L);
+		for(int p = 0; p < length; p++)
+			this.exponentialParts[p] = Math.exp(-this.squaredL2NormOfDiff[p] / 2 / this.sigma_l / this.sigma_l);
+
+		// Derivative for sigma_y, the derivative of K is 2 * sigma_y * I:
+		double trace = 0;
+		for(int i = 0; i < dimension; i++)
+			trace += aaTMinusKInverse[i * (i + 1) / 2 + i] * (2 * this.sigma_y);
+		double gradientY = 0.5 * trace;
 		this.sumY += gradientY * gradientY;
 		this.sigma_y += this.learnRate / Math.sqrt(this.sumY) * gradientY;
 		// Derivative for sigma_f:
-		double[][] kernelDerivative = new double[dimension][dimension];
-		for(int i = 0; i < this.squaredL2NormOfDiff.length; i++)
-		{
-			for(int j = 0; j < this.squaredL2NormOfDiff[i].length; j++)
-			{
-				kernelDerivative[i][j] = 2 * this.sigma_f * exponentialParts[i][j];
-				kernelDerivative[j][i] = kernelDerivative[i][j];
-			}
-		}
-		double gradientF = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealMatrix(kernelDerivative));
+		for(int p = 0; p < length; p++)
+			this.kernelDerivative[p] = 2 * this.sigma_f * this.exponentialParts[p];
+		double gradientF = this.computeDerivative(aaTMinusKInverse, this.kernelDerivative, dimension);
 		this.sumF += gradientF * gradientF;
 		this.sigma_f += this.learnRate / Math.sqrt(this.sumF) * gradientF;
 
 		// Derivative for sigma_l:
-		// kernelDerivative = new double[dimension][dimension];
-		for(int i = 0; i < this.squaredL2NormOfDiff.length; i++)
+		for(int p = 0; p < length; p++)
+			this.kernelDerivative[p] = sigma_f * sigma_f * this.exponentialParts[p] * squaredL2NormOfDiff[p] / this.sigma_l / this.sigma_l / this.sigma_l;
+		double gradientL = this.computeDerivative(aaTMinusKInverse, this.kernelDerivative, dimension);
+		this.sumL += gradientL * gradientL;
+		this.sigma_l += this.learnRate / Math.sqrt(this.sumL) * gradientL;
+	}
+
+	/**
+	 * Parameters in the order sigma_f, sigma_y, sigma_l.
+	 */
+	@Override
+	public double[] getParameters()
+	{
+		return new double[] { this.sigma_f, this.sigma_y, this.sigma_l };
+	}
+
+	@Override
+	public void setParameters(double[] parameters)
+	{
+		this.sigma_f = parameters[0];
+		this.sigma_y = parameters[1];
+		this.sigma_l = parameters[2];
+	}
+
+	@Override
+	public double[] computeGradient(Instances train, CholeskyFactor L, double[] alpha)
+	{
+		this.updateSquaredL2NormOfDifferences(train);
+		double[] aaTMinusKInverse = this.getAATMinusKInverse(alpha, L);
+		// One sweep over the lower triangle of W, every derivative of K is a multiple of the exponential part.
+		double traceW = 0, sumOfProducts = 0, sumOfWeightedProducts = 0;
+		for(int i = 0, offset = 0; i < this.numCached; i++, offset += i)
 		{
-			for(int j = 0; j < this.squaredL2NormOfDiff[i].length; j++)
+			traceW += aaTMinusKInverse[offset + i];
+			for(int j = 0; j < i; j++)
 			{
-				kernelDerivative[i][j] = sigma_f * sigma_f * exponentialParts[i][j] * squaredL2NormOfDiff[i][j] / this.sigma_l / this.sigma_l / this.sigma_l;
-				kernelDerivative[j][i] = kernelDerivative[i][j];
+				double squaredDistance = this.squaredL2NormOfDiff[offset + j];
+				double product = aaTMinusKInverse[offset + j] * Math.exp(-squaredDistance / 2 / this.sigma_l / this.sigma_l);
+				sumOfProducts += product;
+				sumOfWeightedProducts += product * squaredDistance;
 			}
 		}
-		double gradientL = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealMatrix(kernelDerivative));
-		this.sumL += gradientL * gradientL;
-		this.sigma_l += this.learnRate / Math.sqrt(this.sumL) * gradientL;
+		return new double[] { this.sigma_f * (traceW + 2 * sumOfProducts), this.sigma_y * traceW,
+				this.sigma_f * this.sigma_f * sumOfWeightedProducts / this.sigma_l / this.sigma_l / this.sigma_l };
 	}
 
 	@Override
@@ -195,6 +301,22 @@ public class SEKernel extends Kernel
 		return "de.ismll.kernel.SEKernel:\nsigma_f=" + this.sigma_f + "\nsigma_y=" + this.sigma_y + "\nsigma_l=" + this.sigma_l + "\n";
 	}
 
+	public DistanceTable getDistanceTable()
+	{
+		return this.tableIds == null ? null : this.tableIds.getTable();
+	}
+
+	/**
+	 * Uses the (unweighted) table for all distances, null switches back to computing them. The table can be shared by several kernels.
+	 */
+	public void setDistanceTable(DistanceTable distanceTable)
+	{
+		if(distanceTable == this.getDistanceTable())
+			return;
+		this.clearCache();
+		this.tableIds = distanceTable == null ? null : new TableIds(distanceTable);
+	}
+
 	public double getSigma_f()
 	{
 		return this.sigma_f;
@@ -0,0 +1,177 @@
+package de.ismll.kernel;
+
+import de.ismll.core.Instance;
+import de.ismll.core.Instances;
+
+/**
+ * Per-dimension squared differences (x_i[d] - x_j[d])^2 of all pairs of training instances, as needed by {@link SEARDKernel}. Every dimension is stored as a
+ * packed strictly lower triangle of floats (pair (i, j) with j < i at i * (i - 1) / 2 + j). Dimensions which are constant on the training set have no entry,
+ * {@link #dimension(int)} returns null for them.
+ * <p>
+ * If all dimensions fit into the memory budget they are computed once and kept. Otherwise only a block of dimensions is held at a time and {@link #load(int)}
+ * recomputes the block from the extracted columns. The budget covers the extracted columns and the float blocks, at least one dimension is held.
+ */
+class SquaredDifferences
+{
+	private final int numDimensions;
+
+	private final long maxBytes;
+
+	private Instances instances;
+
+	private Instance[] rows = new Instance[0];
+
+	private int numRows;
+
+	/**
+	 * Values of the training instances per dimension, null for constant dimensions.
+	 */
+	private double[][] columns;
+
+	/**
+	 * Buffers of the currently loaded block, one per dimension of the block.
+	 */
+	private float[][] block;
+
+	private int blockStart = -1, blockSize;
+
+	SquaredDifferences(int numDimensions, long maxBytes)
+	{
+		this.numDimensions = numDimensions;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Recomputes the differences if the training instances changed since the last call.
+	 */
+	void update(Instances instances)
+	{
+		if(this.holds(instances))
+			return;
+		int n = instances.numInstances();
+
+		this.instances = instances;
+		this.numRows = n;
+		this.rows = new Instance[n];
+		this.columns = new double[this.numDimensions][n];
+		for(int i = 0; i < n; i++)
+		{
+			Instance instance = instances.instance(i);
+			this.rows[i] = instance;
+			for(int k = 0; k < instance.size(); k++)
+			{
+				int key = instance.keyAt(k);
+				if(key < this.numDimensions)
+					this.columns[key][i] = instance.valueAt(k);
+			}
+		}
+		long columnBytes = 0;
+		for(int d = 0; d < this.numDimensions; d++)
+		{
+			boolean constant = true;
+			for(int i = 1; constant && i < n; i++)
+				constant = this.columns[d][i] == this.columns[d][0];
+			if(constant)
+				this.columns[d] = null;
+			else
+				columnBytes += 8L * n;
+		}
+
+		long bytesPerDimension = 4L * this.numPairs();
+		int maxBlockSize = (int) Math.min(this.numDimensions, Math.max(1, (this.maxBytes - columnBytes) / Math.max(1, bytesPerDimension)));
+		this.blockSize = maxBlockSize;
+		this.block = new float[this.numDimensions][];
+		this.blockStart = -1;
+		this.load(0);
+	}
+
+	/**
+	 * True if the differences belong to exactly these training instances, in this order.
+	 */
+	boolean holds(Instances instances)
+	{
+		int n = instances.numInstances();
+		boolean valid = instances == this.instances && n == this.numRows;
+		for(int i = 0; valid && i < n; i++)
+			valid = instances.instance(i) == this.rows[i];
+		return valid;
+	}
+
+	int numRows()
+	{
+		return this.numRows;
+	}
+
+	int numPairs()
+	{
+		return this.numRows * (this.numRows - 1) / 2;
+	}
+
+	/**
+	 * Number of dimensions held at the same time, all of them if the cache fits into the memory budget.
+	 */
+	int blockSize()
+	{
+		return this.blockSize;
+	}
+
+	boolean isCached()
+	{
+		return this.blockSize == this.numDimensions;
+	}
+
+	/**
+	 * Makes the dimensions [start, start + blockSize()) available. The buffers of the previous block are reused.
+	 */
+	void load(int start)
+	{
+		if(start == this.blockStart)
+			return;
+		int numPairs = this.numPairs();
+		float[][] buffers = new float[this.blockSize][];
+		int numBuffers = 0;
+		if(this.blockStart >= 0)
+		{
+			for(int d = this.blockStart; d < Math.min(this.numDimensions, this.blockStart + this.blockSize); d++)
+			{
+				if(this.block[d] != null)
+					buffers[numBuffers++] = this.block[d];
+				this.block[d] = null;
+			}
+		}
+		this.blockStart = start;
+		for(int d = start; d < Math.min(this.numDimensions, start + this.blockSize); d++)
+		{
+			double[] column = this.columns[d];
+			if(column == null)
+				continue;
+			float[] differences = numBuffers > 0 ? buffers[--numBuffers] : new float[numPairs];
+			for(int i = 1, offset = 0; i < this.numRows; offset += i, i++)
+			{
+				double x = column[i];
+				for(int j = 0; j < i; j++)
+				{
+					double diff = x - column[j];
+					differences[offset + j] = (float) (diff * diff);
+				}
+			}
+			this.block[d] = differences;
+		}
+	}
+
+	/**
+	 * The squared differences of dimension d, which has to be part of the loaded block. Null if the dimension is constant.
+	 */
+	float[] dimension(int d)
+	{
+		return this.block[d];
+	}
+
+	/**
+	 * True if dimension d is constant on the training instances, i.e. all its differences are zero.
+	 */
+	boolean isConstant(int d)
+	{
+		return this.columns[d] == null;
+	}
+}
@@ -0,0 +1,51 @@
+package de.ismll.kernel;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinTask;
+
+import de.ismll.core.Instance;
+
+/**
+ * The ids of the instances evaluated by one kernel in a {@link DistanceTable}, cached by reference. The cache belongs to the kernel and is dropped with it,
+ * so a table shared by many models does not keep their instances alive. An instance which is not cached yet is looked up by its values, e.g. the row view
+ * of a point that was registered before being copied into the training data of a Gaussian process, and registered only if the table does not know it.
+ */
+class TableIds
+{
+	private final DistanceTable table;
+
+	private final IdentityHashMap<Instance, int[]> ids = new IdentityHashMap<Instance, int[]>();
+
+	TableIds(DistanceTable table)
+	{
+		this.table = table;
+	}
+
+	DistanceTable getTable()
+	{
+		return this.table;
+	}
+
+	double squaredDistance(Instance instance1, Instance instance2)
+	{
+		return this.table.squaredDistance(this.get(instance1), this.get(instance2));
+	}
+
+	private int[] get(Instance instance)
+	{
+		int[] id = this.ids.get(instance);
+		if(id == null)
+		{
+			id = this.table.lookup(instance);
+			if(id == null)
+			{
+				// Registering writes to the table, which the kernels of other workers may read at the same time.
+				if(this.table.isShared() && ForkJoinTask.inForkJoinPool())
+					throw new IllegalStateException("Instances evaluated in parallel must be registered in the distance table up front.");
+				id = this.table.register(instance);
+			}
+			this.ids.put(instance, id);
+		}
+		return id;
+	}
+}